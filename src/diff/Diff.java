@@ -2,86 +2,322 @@ package diff;
 
 import java.util.*;
 
+/**
+ * Myers' diff in linear space. Instead of keeping every path it explores, it finds the middle snake of the shortest
+ * edit script by searching from both ends at once, then does the same for the parts before and after it. Only two
+ * arrays of diagonal positions are kept, so memory grows with the number of lines and not with the number of edits.
+ * <p>
+ * Lines in common at the start and end are skipped first, and the rest are turned into numbers, with equal lines
+ * getting the same number, so the search compares numbers instead of strings. An edit in the middle of a large map
+ * only searches the few lines that changed.
+ * <p>
+ * The histogram algorithm can be used instead, which lines up the rarest lines first and only falls back to Myers'
+ * search between them. It may use a few more changes, but they are kept together instead of matching repeated lines
+ * like closing braces from far apart, so they are shorter to write and more likely to still apply after the map
+ * changes.
+ */
 public class Diff {
-    public static Map<Integer, List<String>> diff(String[] originalLines, String[] modifiedLines) {
-        PathNode path = findPath(originalLines, modifiedLines);
-        return formattedDiff(path, modifiedLines);
+    public enum Algorithm {
+        MYERS("Myers"), HISTOGRAM("Histogram");
+
+        private final String displayName;
+
+        Algorithm(String displayName) {
+            this.displayName = displayName;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
     }
 
-    private static PathNode findPath(String[] originalLines, String[] modifiedLines) {
-        int n = originalLines.length;
-        int m = modifiedLines.length;
+    // Lines that appear more often than this in a range are never used to line up the histogram algorithm
+    private static final int MAX_OCCURRENCES = 64;
 
-        int max = n + m + 1;
-        int size = 1 + 2 * max;
-        int middle = size / 2;
-        PathNode[] diagonal = new PathNode[size];
+    private final Algorithm algorithm;
+    private final String[] modifiedLines;
+    // Number of lines in common at the start, which come before the lines being searched
+    private final int commonStart;
+    // Number for each line being searched, which is the same for equal lines
+    private final int[] originalIds;
+    private final int[] modifiedIds;
+    // Furthest position along each diagonal, searching forward from the start and backward from the end
+    private final int[] forward;
+    private final int[] backward;
+    // For the histogram algorithm, the number of times each line is in a range, the first place it is, and the next
+    // place after each line with the same line
+    private final int[] counts;
+    private final int[] firstPlaces;
+    private final int[] nextPlaces;
+    private final Map<Integer, List<String>> lineChanges;
+    // The run of changes being collected, which removes original lines from its start to its end and then adds lines
+    private int runStart;
+    private int runEnd;
+    private final List<String> runAddedLines;
 
-        diagonal[middle + 1] = new PathNode(0, -1, null);
-        for (int d = 0; d < max; d++) {
-            for (int k = -d; k <= d; k += 2) {
-                int kmiddle = middle + k;
-                int kplus = kmiddle + 1;
-                int kminus = kmiddle - 1;
-                PathNode prev;
-                int x;
+    private Diff(Algorithm algorithm, String[] modifiedLines, int commonStart, int[] originalIds, int[] modifiedIds, int numIds) {
+        this.algorithm = algorithm;
+        this.modifiedLines = modifiedLines;
+        this.commonStart = commonStart;
+        this.originalIds = originalIds;
+        this.modifiedIds = modifiedIds;
+        int size = 2 * ((originalIds.length + modifiedIds.length + 1) / 2) + 3;
+        forward = new int[size];
+        backward = new int[size];
+        boolean histogram = algorithm == Algorithm.HISTOGRAM;
+        counts = histogram ? new int[numIds] : null;
+        firstPlaces = histogram ? new int[numIds] : null;
+        nextPlaces = histogram ? new int[originalIds.length] : null;
+        lineChanges = new TreeMap<>();
+        runAddedLines = new ArrayList<>();
+    }
 
-                if (k == -d || (k != d && diagonal[kminus].x() < diagonal[kplus].x())) {
-                    x = diagonal[kplus].x();
-                    prev = diagonal[kplus];
-                } else {
-                    x = diagonal[kminus].x() + 1;
-                    prev = diagonal[kminus];
-                }
-                diagonal[kminus] = null;
+    /**
+     * Find the changes that turn the original lines into the modified lines, using as few changes as possible.
+     *
+     * @return The changes at each original line, in order. A null removes that line, and any other value is a line
+     * added after it. Lines added before the first line are at -1.
+     */
+    public static Map<Integer, List<String>> diff(String[] originalLines, String[] modifiedLines) {
+        return diff(originalLines, modifiedLines, Algorithm.MYERS);
+    }
 
-                int y = x - k;
-                PathNode node = new PathNode(x, y, prev);
+    /**
+     * Find the changes that turn the original lines into the modified lines.
+     *
+     * @param algorithm The algorithm to use, where only {@link Algorithm#MYERS} always finds the fewest changes
+     * @return The changes at each original line, in the same form as {@link #diff(String[], String[])}
+     */
+    public static Map<Integer, List<String>> diff(String[] originalLines, String[] modifiedLines, Algorithm algorithm) {
+        int start = 0;
+        int originalEnd = originalLines.length;
+        int modifiedEnd = modifiedLines.length;
+        while (start < originalEnd && start < modifiedEnd && originalLines[start].equals(modifiedLines[start])) {
+            start++;
+        }
+        while (start < originalEnd && start < modifiedEnd
+                && originalLines[originalEnd - 1].equals(modifiedLines[modifiedEnd - 1])) {
+            originalEnd--;
+            modifiedEnd--;
+        }
 
-                while (x < n && y < m && originalLines[x].equals(modifiedLines[y])) {
-                    x++;
-                    y++;
-                }
+        // Only the lines left over are numbered, so an edit to a large map hashes just a few lines
+        Map<String, Integer> ids = new HashMap<>();
+        int[] originalIds = intern(originalLines, start, originalEnd, ids);
+        int[] modifiedIds = intern(modifiedLines, start, modifiedEnd, ids);
+        Diff diff = new Diff(algorithm, modifiedLines, start, originalIds, modifiedIds, ids.size());
+        diff.compare(0, originalIds.length, 0, modifiedIds.length);
+        diff.endRun();
+        return diff.lineChanges;
+    }
 
-                if (x != node.x()) {
-                    node = new PathNode(x, y, node);
+    // Number the lines from start to end, giving each line not seen before the next number
+    private static int[] intern(String[] lines, int start, int end, Map<String, Integer> ids) {
+        int[] lineIds = new int[end - start];
+        for (int i = start; i < end; i++) {
+            Integer id = ids.putIfAbsent(lines[i], ids.size());
+            lineIds[i - start] = (id != null) ? id : ids.size() - 1;
+        }
+        return lineIds;
+    }
+
+    /**
+     * Add the changes between two ranges of the lines being searched, in order from the start of the ranges to the end.
+     * Each range is split in two around a run of common lines until it only removes or only adds lines.
+     */
+    private void compare(int originalStart, int originalEnd, int modifiedStart, int modifiedEnd) {
+        // Ranges left to compare, with the earliest on top so changes are added in order
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{originalStart, originalEnd, modifiedStart, modifiedEnd});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            originalStart = range[0];
+            originalEnd = range[1];
+            modifiedStart = range[2];
+            modifiedEnd = range[3];
+            // Lines in common at either end are not changes
+            while (originalStart < originalEnd && modifiedStart < modifiedEnd
+                    && originalIds[originalStart] == modifiedIds[modifiedStart]) {
+                originalStart++;
+                modifiedStart++;
+            }
+            while (originalStart < originalEnd && modifiedStart < modifiedEnd
+                    && originalIds[originalEnd - 1] == modifiedIds[modifiedEnd - 1]) {
+                originalEnd--;
+                modifiedEnd--;
+            }
+
+            if (originalStart == originalEnd) {
+                startRun(commonStart + originalStart);
+                runAddedLines.addAll(Arrays.asList(modifiedLines).subList(commonStart + modifiedStart, commonStart + modifiedEnd));
+            } else if (modifiedStart == modifiedEnd) {
+                startRun(commonStart + originalStart);
+                runEnd = commonStart + originalEnd;
+            } else {
+                int[] split = null;
+                if (algorithm == Algorithm.HISTOGRAM) {
+                    split = findRarestMatch(originalStart, originalEnd, modifiedStart, modifiedEnd);
                 }
+                if (split == null) {
+                    // Both ranges differ at their first and last lines, so the snake has at least one change on each side
+                    split = findMiddleSnake(originalStart, originalEnd, modifiedStart, modifiedEnd);
+                }
+                ranges.push(new int[]{split[2], originalEnd, split[3], modifiedEnd});
+                ranges.push(new int[]{originalStart, split[0], modifiedStart, split[1]});
+            }
+        }
+    }
 
-                diagonal[kmiddle] = node;
+    /**
+     * Find the run of common lines between two ranges whose rarest line appears the fewest times in the original
+     * range, picking the longest run if there are several. Lines that appear once on each side line up the same way
+     * as in patience diff, and lines that repeat are only used when nothing rarer is in common.
+     *
+     * @return The start and end of the run, in the same form as {@link #findMiddleSnake}, or null if no line in common
+     * appears few enough times
+     */
+    private int[] findRarestMatch(int originalStart, int originalEnd, int modifiedStart, int modifiedEnd) {
+        for (int x = originalEnd - 1; x >= originalStart; x--) {
+            int id = originalIds[x];
+            nextPlaces[x] = (counts[id] == 0) ? -1 : firstPlaces[id];
+            firstPlaces[id] = x;
+            counts[id]++;
+        }
 
-                if (x >= n && y >= m) {
-                    return diagonal[kmiddle];
+        int[] best = null;
+        int bestCount = MAX_OCCURRENCES + 1;
+        int bestLength = 0;
+        for (int y = modifiedStart; y < modifiedEnd; ) {
+            int nextY = y + 1;
+            int id = modifiedIds[y];
+            if (counts[id] != 0 && counts[id] <= bestCount) {
+                for (int x = firstPlaces[id]; x != -1; x = nextPlaces[x]) {
+                    int matchStartX = x;
+                    int matchStartY = y;
+                    while (matchStartX > originalStart && matchStartY > modifiedStart
+                            && originalIds[matchStartX - 1] == modifiedIds[matchStartY - 1]) {
+                        matchStartX--;
+                        matchStartY--;
+                    }
+                    int matchEndX = x + 1;
+                    int matchEndY = y + 1;
+                    int matchCount = counts[id];
+                    while (matchEndX < originalEnd && matchEndY < modifiedEnd
+                            && originalIds[matchEndX] == modifiedIds[matchEndY]) {
+                        matchCount = Math.min(matchCount, counts[originalIds[matchEndX]]);
+                        matchEndX++;
+                        matchEndY++;
+                    }
+                    for (int i = matchStartX; i < x; i++) {
+                        matchCount = Math.min(matchCount, counts[originalIds[i]]);
+                    }
+                    if (matchCount < bestCount || (matchCount == bestCount && matchEndX - matchStartX > bestLength)) {
+                        best = new int[]{matchStartX, matchStartY, matchEndX, matchEndY};
+                        bestCount = matchCount;
+                        bestLength = matchEndX - matchStartX;
+                    }
+                    // Lines inside this run would only find it again
+                    nextY = Math.max(nextY, matchEndY);
                 }
             }
-            diagonal[middle + d - 1] = null;
+            y = nextY;
         }
-        return null;
+
+        for (int x = originalStart; x < originalEnd; x++) {
+            counts[originalIds[x]] = 0;
+        }
+        return best;
     }
 
-    private static Map<Integer, List<String>> formattedDiff(PathNode path, String[] modifiedLines) {
-        Map<Integer, List<String>> lineChanges = new TreeMap<>();
+    /**
+     * Find the middle snake of the shortest edit script between two ranges, which is a run of common lines, possibly
+     * empty, in the middle of the script. The forward search goes from the start of the ranges and the backward search
+     * goes from the end, each a step at a time, until they overlap.
+     *
+     * @return The start and end of the snake, as original start, modified start, original end, and modified end
+     */
+    private int[] findMiddleSnake(int originalStart, int originalEnd, int modifiedStart, int modifiedEnd) {
+        int n = originalEnd - originalStart;
+        int m = modifiedEnd - modifiedStart;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        // Diagonal k is stored at offset + k. Backward diagonals count from the end, so backward k meets forward delta - k.
+        int offset = max + 1;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
 
-        while (path != null && path.prev() != null && path.prev().y() >= 0) {
-            int x = path.x();
-            int y = path.y();
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int snakeX = x;
+                int snakeY = y;
+                while (x < n && y < m && originalIds[originalStart + x] == modifiedIds[modifiedStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                // The backward search has only reached d - 1 steps, so its diagonals are checked against forward ones
+                if (odd && delta - k >= -(d - 1) && delta - k <= d - 1 && x + backward[offset + delta - k] >= n) {
+                    return new int[]{originalStart + snakeX, modifiedStart + snakeY, originalStart + x, modifiedStart + y};
+                }
+            }
 
-            switch (path.getDirection()) {
-                case HORIZONTAL -> {
-                    if (!lineChanges.containsKey(x - 1)) {
-                        lineChanges.put(x - 1, new LinkedList<>());
-                    }
-                    lineChanges.get(x - 1).addFirst(null);
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
                 }
-                case VERTICAL -> {
-                    if (!lineChanges.containsKey(x - 1)) {
-                        lineChanges.put(x - 1, new LinkedList<>());
-                    }
-                    lineChanges.get(x - 1).addFirst(modifiedLines[y - 1]);
+                int y = x - k;
+                int snakeX = x;
+                int snakeY = y;
+                while (x < n && y < m
+                        && originalIds[originalEnd - 1 - x] == modifiedIds[modifiedEnd - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                if (!odd && delta - k >= -d && delta - k <= d && x + forward[offset + delta - k] >= n) {
+                    return new int[]{originalEnd - x, modifiedEnd - y, originalEnd - snakeX, modifiedEnd - snakeY};
                 }
             }
+        }
+        // The searches always meet by the time each has gone half of the way
+        throw new IllegalStateException("No middle snake found");
+    }
 
-            path = path.prev();
+    /**
+     * Continue the run of changes if the next change, at a line in the whole original, is where it ends, or else start
+     * a new run. Changes come in order, so a run can be written out as soon as a change is not part of it.
+     */
+    private void startRun(int originalLine) {
+        if (originalLine != runEnd) {
+            endRun();
+            runStart = originalLine;
+            runEnd = originalLine;
+        }
+    }
+
+    /**
+     * Write out the run of changes with its removed lines first and the added lines after the last of them, which is
+     * how the changes always were written before, no matter the order they were found in.
+     */
+    private void endRun() {
+        for (int x = runStart; x < runEnd; x++) {
+            lineChanges.computeIfAbsent(x, _ -> new LinkedList<>()).add(null);
+        }
+        if (!runAddedLines.isEmpty()) {
+            lineChanges.computeIfAbsent(runEnd - 1, _ -> new LinkedList<>()).addAll(runAddedLines);
+            runAddedLines.clear();
         }
-        return lineChanges;
     }
-}
\ No newline at end of file
+}
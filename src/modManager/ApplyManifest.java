@@ -0,0 +1,246 @@
+package modManager;
+
+import redguard.Utils;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static modManager.RedguardModManager.logger;
+
+/**
+ * Content hashes of the backed up game files and of the files written to the game folder by the last apply. Each game
+ * file that apply writes gets a key: the backup's hash for a plain copy, or a hash of the backup's hash, the mod
+ * changes, and the program's own code for a patched file. A patched map's key also has the hashes of the game files
+ * its scripts are compiled with. A file is only written again when its key changes or the file in the game folder was
+ * changed by something else since it was written.
+ * <p>
+ * Methods can be called from several threads at once, so maps can be written in parallel.
+ */
+public class ApplyManifest {
+    public static final String MANIFEST_FILE = "Manifest.txt";
+    // Increase when the manifest's format changes, so that an old manifest is not read
+    private static final int VERSION = 1;
+    // Changes whenever the program is rebuilt, so a fix to how files are written makes them get written again
+    private static final String PROGRAM_HASH = hashProgram();
+    private static final String BACKUP_SECTION = "backup";
+    private static final String OUTPUT_SECTION = "output";
+
+    @FunctionalInterface
+    public interface OutputWriter {
+        void write(Path target) throws IOException;
+    }
+
+    /**
+     * @param hash     The content hash of a backup file, or the key of an output file
+     * @param size     The file size when the hash was taken or the file was written
+     * @param modified The file's last modified time in milliseconds at that point
+     */
+    private record Entry(String hash, long size, long modified) {
+    }
+
+    private final Path backupPath;
+    private final Path gamePath;
+    private final Path manifestPath;
+    private final Map<String, Entry> backupEntries;
+    private final Map<String, Entry> outputEntries;
+    private final String mapDependenciesHash;
+
+    /**
+     * @param mapDependencies The game files besides the maps themselves that compiling map scripts depends on, such as
+     *                        SOUP386.DEF, ITEM.INI, and WORLD.INI
+     */
+    public ApplyManifest(Path backupPath, Path gamePath, Path... mapDependencies) {
+        this.backupPath = backupPath;
+        this.gamePath = gamePath;
+        manifestPath = backupPath.resolve(MANIFEST_FILE);
+        backupEntries = new ConcurrentHashMap<>();
+        outputEntries = new ConcurrentHashMap<>();
+        mapDependenciesHash = hashMapDependencies(mapDependencies);
+        load();
+    }
+
+    private static String hashMapDependencies(Path... mapDependencies) {
+        String[] hashes = new String[mapDependencies.length];
+        try {
+            for (int i = 0; i < mapDependencies.length; i++) {
+                hashes[i] = Utils.hashFile(mapDependencies[i]);
+            }
+        } catch (IOException e) {
+            // A key that never matches, so every patched map is written
+            logger.warning("Failed to hash the files that maps depend on, so all patched maps will be written: " + e);
+            return UUID.randomUUID().toString();
+        }
+        return Utils.hashStrings(hashes);
+    }
+
+    /**
+     * Hash the running program, which is the jar file, or every class file if it is running from a folder of classes.
+     * If the program cannot be read, the hash is different every time, so patched files are always written.
+     */
+    private static String hashProgram() {
+        try {
+            Path location = Path.of(ApplyManifest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isRegularFile(location)) {
+                return Utils.hashFile(location);
+            }
+            List<Path> classFiles;
+            try (Stream<Path> paths = Files.walk(location)) {
+                classFiles = paths.filter(path -> path.toString().endsWith(".class")).sorted().toList();
+            }
+            String[] parts = new String[classFiles.size() * 2];
+            for (int i = 0; i < classFiles.size(); i++) {
+                parts[i * 2] = location.relativize(classFiles.get(i)).toString();
+                parts[i * 2 + 1] = Utils.hashFile(classFiles.get(i));
+            }
+            return Utils.hashStrings(parts);
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            logger.warning("Failed to hash the program, so all patched files will be written: " + e);
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(manifestPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals("version\t" + VERSION)) {
+                logger.info("Ignoring manifest from a different version: " + manifestPath);
+                return;
+            }
+            for (line = reader.readLine(); line != null; line = reader.readLine()) {
+                // Split by tabs: section, file name, hash, size, and last modified time
+                String[] split = line.split("\t");
+                if (split.length != 5) {
+                    continue;
+                }
+                Entry entry = new Entry(split[2], Long.parseLong(split[3]), Long.parseLong(split[4]));
+                if (split[0].equals(BACKUP_SECTION)) {
+                    backupEntries.put(split[1], entry);
+                } else if (split[0].equals(OUTPUT_SECTION)) {
+                    outputEntries.put(split[1], entry);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.warning("Failed to read manifest, so all files will be written: " + manifestPath);
+            backupEntries.clear();
+            outputEntries.clear();
+        }
+    }
+
+    /**
+     * Save the manifest to the backup folder, replacing the old one only once the new one is fully written.
+     */
+    public void save() throws IOException {
+        Path tempPath = manifestPath.resolveSibling(MANIFEST_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath)) {
+            writer.write("version\t" + VERSION);
+            writer.newLine();
+            writeSection(writer, BACKUP_SECTION, backupEntries);
+            writeSection(writer, OUTPUT_SECTION, outputEntries);
+        }
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeSection(BufferedWriter writer, String section, Map<String, Entry> entries) throws IOException {
+        for (Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet()) {
+            Entry entry = e.getValue();
+            writer.write(section + "\t" + e.getKey() + "\t" + entry.hash() + "\t" + entry.size() + "\t" + entry.modified());
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Get the content hash of a backup file. The hash is only computed again if the file's size or last modified time
+     * changed since it was last hashed.
+     *
+     * @param name The file name relative to the backup folder
+     * @return The file's content hash
+     */
+    public String getBackupHash(String name) throws IOException {
+        Path path = backupPath.resolve(name);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Entry entry = backupEntries.get(name);
+        if (entry == null || !matches(entry, attributes)) {
+            entry = new Entry(Utils.hashFile(path), attributes.size(), attributes.lastModifiedTime().toMillis());
+            backupEntries.put(name, entry);
+        }
+        return entry.hash();
+    }
+
+    /**
+     * Copy a backup file to the game folder, unless the game folder already has that exact copy.
+     *
+     * @param name The file name, relative to both the backup folder and the game folder
+     * @return True if the file was copied
+     */
+    public boolean copy(String name) throws IOException {
+        Path source = backupPath.resolve(name);
+        return writeWithKey(name, getBackupHash(name), target -> Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    /**
+     * Write a patched game file, unless the game folder already has the result of the same changes on the same backup.
+     *
+     * @param name          The file name, relative to both the backup folder and the game folder
+     * @param changesDigest A digest of every change that goes into the file
+     * @param writer        Writes the patched file to the given target
+     * @return True if the file was written
+     */
+    public boolean write(String name, String changesDigest, OutputWriter writer) throws IOException {
+        return writeWithKey(name, Utils.hashStrings(PROGRAM_HASH, getBackupHash(name), changesDigest), writer);
+    }
+
+    /**
+     * Write a patched map, unless the game folder already has the result of the same changes on the same backup,
+     * compiled with the same game files.
+     *
+     * @param name          The map file name, relative to both the backup folder and the game folder
+     * @param changesDigest A digest of every change that goes into the map
+     * @param writer        Writes the patched map to the given target
+     * @return True if the map was written
+     */
+    public boolean writeMap(String name, String changesDigest, OutputWriter writer) throws IOException {
+        return writeWithKey(name, Utils.hashStrings(PROGRAM_HASH, mapDependenciesHash, getBackupHash(name), changesDigest),
+                writer);
+    }
+
+    private boolean writeWithKey(String name, String key, OutputWriter writer) throws IOException {
+        Path target = gamePath.resolve(name);
+        if (isUpToDate(name, key, target)) {
+            return false;
+        }
+        // Forget the old output first so a failed write is never mistaken for a finished one
+        outputEntries.remove(name);
+        writer.write(target);
+        BasicFileAttributes attributes = Files.readAttributes(target, BasicFileAttributes.class);
+        outputEntries.put(name, new Entry(key, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        return true;
+    }
+
+    private boolean isUpToDate(String name, String key, Path target) {
+        Entry entry = outputEntries.get(name);
+        if (entry == null || !entry.hash().equals(key)) {
+            return false;
+        }
+        try {
+            return matches(entry, Files.readAttributes(target, BasicFileAttributes.class));
+        } catch (IOException e) {
+            // Missing or unreadable, so write it again
+            return false;
+        }
+    }
+
+    private static boolean matches(Entry entry, BasicFileAttributes attributes) {
+        return entry.size() == attributes.size() && entry.modified() == attributes.lastModifiedTime().toMillis();
+    }
+}
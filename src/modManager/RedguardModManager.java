@@ -12,7 +12,9 @@ import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.*;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class RedguardModManager {
@@ -31,6 +33,8 @@ public class RedguardModManager {
     private static final String MODS_FOLDER = "Mods";
     private static final String RTX_AUDIO_FOLDER = "RTX Audio";
     private static final String BACKUP_FOLDER = "backup";
+    private static final String SCRIPT_CACHE_FOLDER = "scripts";
+    private static final String REFERENCE_INDEX_FILE = "references.txt";
     private static final String SETTINGS_FILE = "Settings.txt";
     private static final String MOD_LIST_FILE = "Mod List.txt";
 
@@ -50,6 +54,9 @@ public class RedguardModManager {
     // Storage for various mod changes
     private static RtxDatabase rtxDatabase;
     private static MapDatabase mapDatabase;
+    // Built in the background at startup, so they are null until then
+    private static volatile ReferenceIndex referenceIndex;
+    private static volatile ScriptSearchIndex scriptSearchIndex;
 
     /**
      * Starting point for the application. Set the look and feel, initialize various paths, load settings from previous
@@ -147,6 +154,23 @@ public class RedguardModManager {
                 }
             }
         }
+
+        try {
+            mapDatabase.setScriptCache(new ScriptCache(backupPath.resolve(SCRIPT_CACHE_FOLDER), getMapDependencies()));
+        } catch (IOException e) {
+            logger.warning("Failed to set up script cache, so maps will always be decompiled: " + e.getMessage());
+        }
+
+        // Index the scripts without holding up startup, since any changed maps must be decompiled. The search index is
+        // built second, so it can use the scripts that were cached while building the reference index.
+        Thread.ofPlatform().name("script-index").daemon().start(() -> {
+            try {
+                referenceIndex = ReferenceIndex.build(mapDatabase, backupPath, backupPath.resolve(REFERENCE_INDEX_FILE));
+                scriptSearchIndex = ScriptSearchIndex.build(mapDatabase, backupPath);
+            } catch (InterruptedException e) {
+                logger.warning("Indexing map scripts was interrupted.");
+            }
+        });
     }
 
     /**
@@ -220,6 +244,7 @@ public class RedguardModManager {
         editMenu.addSeparator();
         ModManagerUtils.createMenuItem(editMenu, "Open Script Editor", _ -> new ScriptEditor(mapDatabase));
         ModManagerUtils.createMenuItem(editMenu, "Open Selected Mod in Script Editor", _ -> openModInScriptEditor());
+        ModManagerUtils.createMenuItem(editMenu, "Verify Map Script Round Trip", event -> verifyMapRoundTrip((JMenuItem) event.getSource()));
         editMenu.addSeparator();
         ModManagerUtils.createMenuItem(editMenu, "Open Texture Viewer", _ -> new TextureViewer(gamePath));
     }
@@ -541,6 +566,16 @@ public class RedguardModManager {
         }
     }
 
+    /**
+     * Decompiled and compiled scripts depend on the maps, the names from the soup file, items, map list, and dialogue.
+     *
+     * @return The game files besides the maps themselves that scripts depend on
+     */
+    private static Path[] getMapDependencies() {
+        return new Path[]{gamePath.resolve("soup386/SOUP386.DEF"), backupPath.resolve("ITEM.INI"),
+                backupPath.resolve("WORLD.INI"), backupPath.resolve("ENGLISH.RTX")};
+    }
+
     /**
      * Collect all the changes from enabled mods in their load order and patch the game files.
      */
@@ -555,6 +590,9 @@ public class RedguardModManager {
         RtxDatabase modifiedDatabase = null;
         INIChanges iniChanges = new INIChanges();
         MapChanges mapChanges = new MapChanges();
+        // Everything that goes into ENGLISH.RTX besides the backup, so the manifest can tell when it needs rewriting
+        List<String> rtxChangesDigests = new ArrayList<>();
+        ApplyManifest manifest = new ApplyManifest(backupPath, gamePath, getMapDependencies());
         try {
             // Go through all enabled mods and collect the sum of their changes, based on load order
             for (Mod mod : modTable.getModList()) {
@@ -568,12 +606,19 @@ public class RedguardModManager {
                             modifiedDatabase = new RtxDatabase(rtxDatabase);
                         }
                         modifiedDatabase.applyChanges(rtxChangesFile);
+                        rtxChangesDigests.add(Utils.hashFile(rtxChangesFile.toPath()));
                     }
 
                     // Get RTX audio changes
                     File audioFolder = getModPath(mod).resolve(RTX_AUDIO_FOLDER).toFile();
                     try {
                         rtxDatabase.loadAudioFolder(audioFolder);
+                        File[] audioFileArray = audioFolder.listFiles();
+                        if (audioFileArray != null) {
+                            for (File audioFile : audioFileArray) {
+                                rtxChangesDigests.add(audioFile.getName() + "\t" + audioFile.length() + "\t" + audioFile.lastModified());
+                            }
+                        }
                     } catch (UnsupportedAudioFileException | IOException e) {
                         ModManagerUtils.showError(window, "Failed to load selected mod's audio folder.");
                     }
@@ -592,46 +637,134 @@ public class RedguardModManager {
                 }
             }
 
-            // Replace ENGLISH.RTX, either with a new version or the original copy
+            // Replace ENGLISH.RTX, either with a new version or the original copy, skipping it if it is already up-to-date
+            int filesWritten = 0;
             if (modifiedDatabase == null) {
-                Files.copy(backupPath.resolve("ENGLISH.RTX"), gamePath.resolve("ENGLISH.RTX"), StandardCopyOption.REPLACE_EXISTING);
+                filesWritten += manifest.copy("ENGLISH.RTX") ? 1 : 0;
             } else {
-                modifiedDatabase.writeFile(gamePath.resolve("ENGLISH.RTX").toFile());
+                RtxDatabase rtxToWrite = modifiedDatabase;
+                filesWritten += manifest.write("ENGLISH.RTX", String.join("\n", rtxChangesDigests),
+                        target -> rtxToWrite.writeFile(target.toFile())) ? 1 : 0;
             }
 
             // Replace INI files, either with a new version or the original copy
             for (String ini : INI_FILES) {
                 if (iniChanges.hasINIChangesFile(ini)) {
-                    INIFile iniFile = new INIFile(ini);
-                    iniFile.readINI(backupPath.resolve(ini).toFile());
+                    StringBuilder iniChangesText = new StringBuilder();
                     for (INIFile iniChangesFile : iniChanges.getINIChangesFiles()) {
-                        if (iniFile.getName().equals(iniChangesFile.getName())) {
-                            iniFile.applyChanges(iniChangesFile);
+                        if (ini.equals(iniChangesFile.getName())) {
+                            iniChangesText.append(iniChangesFile.getINIText()).append("\n");
                         }
                     }
-                    iniFile.writeINI(gamePath.resolve(ini).toFile());
+                    filesWritten += manifest.write(ini, iniChangesText.toString(), target -> {
+                        INIFile iniFile = new INIFile(ini);
+                        iniFile.readINI(backupPath.resolve(ini).toFile());
+                        for (INIFile iniChangesFile : iniChanges.getINIChangesFiles()) {
+                            if (iniFile.getName().equals(iniChangesFile.getName())) {
+                                iniFile.applyChanges(iniChangesFile);
+                            }
+                        }
+                        iniFile.writeINI(target.toFile());
+                    }) ? 1 : 0;
                 } else {
-                    Files.copy(backupPath.resolve(ini), gamePath.resolve(ini), StandardCopyOption.REPLACE_EXISTING);
+                    filesWritten += manifest.copy(ini) ? 1 : 0;
                 }
             }
 
-            // Replace map files that have changes and copy the rest
-            for (MapFile mapFile : mapDatabase.getMapFiles()) {
+            // Replace map files that have changes and copy the rest, working on several maps at once
+            MapBatch.Result<Boolean> mapResult = MapBatch.run(mapDatabase.getMapFiles(), mapFile -> {
                 if (mapChanges.hasModifiedMap(mapFile.getName())) {
-                    if (mapFile.isEmpty()) {
-                        mapFile.readMap(backupPath.resolve(mapFile.getFullName()).toFile());
-                    }
-                    String modifiedScript = mapFile.getModifiedScript(mapChanges);
-                    mapFile.writeMap(gamePath.resolve(mapFile.getFullName()).toFile(), modifiedScript);
+                    return manifest.writeMap(mapFile.getFullName(), mapChanges.getChangesText(mapFile.getName()), target -> {
+                        if (mapFile.isEmpty()) {
+                            mapFile.readMap(backupPath.resolve(mapFile.getFullName()).toFile());
+                        }
+                        mapFile.writeMap(target.toFile(), mapChanges);
+                    });
                 } else {
-                    Files.copy(backupPath.resolve(mapFile.getFullName()), gamePath.resolve(mapFile.getFullName()), StandardCopyOption.REPLACE_EXISTING);
+                    return manifest.copy(mapFile.getFullName());
                 }
+            });
+            for (boolean written : mapResult.getResults().values()) {
+                filesWritten += written ? 1 : 0;
+            }
+            logger.info("Wrote " + filesWritten + " changed game files, the rest were already up-to-date.");
+            logger.info("Applied map changes: " + mapResult);
+
+            if (mapResult.hasFailures()) {
+                StringBuilder message = new StringBuilder("Changes were applied, but " + mapResult.getFailures().size()
+                        + " map(s) could not be written:");
+                for (MapBatch.Failure failure : mapResult.getFailures()) {
+                    logger.log(Level.SEVERE, "Failed to apply changes to map " + failure.mapFile().getName(), failure.exception());
+                    message.append("\n").append(failure);
+                }
+                ModManagerUtils.showError(window, message.toString());
+            } else {
+                JOptionPane.showMessageDialog(window, "Changes were applied successfully.", "Redguard Mod Manager",
+                        JOptionPane.INFORMATION_MESSAGE);
             }
-
-            JOptionPane.showMessageDialog(window, "Changes were applied successfully.", "Redguard Mod Manager",
-                    JOptionPane.INFORMATION_MESSAGE);
         } catch (IOException e) {
             ModManagerUtils.showError(window, "An error occurred while applying changes from mods to game.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ModManagerUtils.showError(window, "Applying changes to maps was interrupted.");
+        } finally {
+            // Save even after a failure, since the files that were written are still correct
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                logger.warning("Failed to save manifest to backup folder: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Decompile and compile the script of every original map, and check that writing each map gives back the same file.
+     * The check goes through every map, so it runs in the background with its menu item disabled until it finishes.
+     * The full report with timings goes to the log.
+     *
+     * @param menuItem The menu item that started the check
+     */
+    private static void verifyMapRoundTrip(JMenuItem menuItem) {
+        String menuText = menuItem.getText();
+        menuItem.setEnabled(false);
+        menuItem.setText(menuText + " (Running...)");
+        Thread.ofPlatform().name("round-trip-check").daemon().start(() -> {
+            try {
+                MapBatch.Result<RoundTripCheck.MapResult> result = new RoundTripCheck(mapDatabase, backupPath).run();
+                logger.info(RoundTripCheck.report(result));
+                SwingUtilities.invokeLater(() -> showRoundTripResult(result));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> ModManagerUtils.showError(window,
+                        "Failed to create a folder for the round trip check."));
+            } catch (InterruptedException e) {
+                SwingUtilities.invokeLater(() -> ModManagerUtils.showError(window, "The round trip check was interrupted."));
+            } finally {
+                SwingUtilities.invokeLater(() -> {
+                    menuItem.setText(menuText);
+                    menuItem.setEnabled(true);
+                });
+            }
+        });
+    }
+
+    private static void showRoundTripResult(MapBatch.Result<RoundTripCheck.MapResult> result) {
+        List<String> problems = new ArrayList<>();
+        for (RoundTripCheck.MapResult mapResult : result.getResults().values()) {
+            if (!mapResult.isIdentical()) {
+                problems.add(mapResult.toString());
+            }
+        }
+        for (MapBatch.Failure failure : result.getFailures()) {
+            logger.log(Level.SEVERE, "Failed round trip of map " + failure.mapFile().getName(), failure.exception());
+            problems.add(failure.toString());
+        }
+        if (problems.isEmpty()) {
+            JOptionPane.showMessageDialog(window, "All " + result.getResults().size()
+                    + " maps were written back identically in " + result.getElapsedNanos() / 1_000_000
+                    + " ms. Timings were written to the log.", TITLE, JOptionPane.INFORMATION_MESSAGE);
+        } else {
+            ModManagerUtils.showError(window, problems.size() + " map(s) did not round trip:\n"
+                    + String.join("\n", problems));
         }
     }
 
@@ -794,4 +927,29 @@ public class RedguardModManager {
     public static File getBackupFile(String filename) {
         return backupPath.resolve(filename).toFile();
     }
+
+    /**
+     * @return The backup folder, which has the original game files
+     */
+    public static Path getBackupPath() {
+        return backupPath;
+    }
+
+    /**
+     * Get the index of where flags, functions, items, and dialogue are used in the original map scripts.
+     *
+     * @return The index, or null if it is still being built
+     */
+    public static ReferenceIndex getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    /**
+     * Get the index for searching the text of the original map scripts.
+     *
+     * @return The index, or null if it is still being built
+     */
+    public static ScriptSearchIndex getScriptSearchIndex() {
+        return scriptSearchIndex;
+    }
 }
\ No newline at end of file
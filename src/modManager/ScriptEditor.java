@@ -1,37 +1,59 @@
 package modManager;
 
 import diff.Diff;
+import redguard.LineWriter;
+import redguard.MapBatch;
 import redguard.MapChanges;
 import redguard.MapDatabase;
 import redguard.MapFile;
+import redguard.ReferenceIndex;
+import redguard.ScriptFolder;
+import redguard.ScriptSearchIndex;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static modManager.RedguardModManager.logger;
 
 public class ScriptEditor {
     private static final String TITLE = "Redguard Script Editor";
+    // Most hits to list when searching all maps
+    private static final int MAX_SEARCH_HITS = 500;
 
     // GUI fields
     private JFrame window;
-    private JMenuItem saveMapItem, saveScriptItem;
+    private JMenuItem saveMapItem, saveScriptItem, exportScriptsItem, importScriptsItem;
     private JTabbedPane tabbedPane;
     private List<MapFile> mapFileTabs;
+    private List<ScriptValidator> validators;
     private MapFile currentMapFile;
     private JTextField searchBar;
+    private JLabel errorLabel;
+    private JDialog searchDialog;
+    private JComboBox<Diff.Algorithm> diffAlgorithmBox;
 
     // Other fields
     private final MapDatabase mapDatabase;
+    // Checks the scripts in the tabs for errors while they are edited
+    private final ExecutorService validationExecutor;
 
     public ScriptEditor(MapDatabase mapDatabase) {
         this.mapDatabase = mapDatabase;
+        validationExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("script-validator").daemon().factory());
         createAndShowGUI();
     }
 
@@ -43,6 +65,13 @@ public class ScriptEditor {
         window.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         window.setMinimumSize(new Dimension(800, 600));
         if (RedguardModManager.appIconImage != null) window.setIconImage(RedguardModManager.appIconImage);
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                validators.forEach(ScriptValidator::stop);
+                validationExecutor.shutdownNow();
+            }
+        });
 
         // Split GUI creation into sections
         createMenuBar();
@@ -73,7 +102,18 @@ public class ScriptEditor {
         saveScriptItem = ModManagerUtils.createMenuItem(fileMenu, "Save Script...", _ -> saveScriptFile());
         saveScriptItem.setEnabled(false);
         fileMenu.addSeparator();
+        exportScriptsItem = ModManagerUtils.createMenuItem(fileMenu, "Export All Scripts...", _ -> exportAllScripts());
+        importScriptsItem = ModManagerUtils.createMenuItem(fileMenu, "Import Scripts Folder...", _ -> importScriptsFolder());
+        fileMenu.addSeparator();
         ModManagerUtils.createMenuItem(fileMenu, "Exit Script Editor", _ -> window.dispose());
+
+        // Search menu
+        JMenu searchMenu = new JMenu("Search");
+        searchMenu.setMnemonic('s');
+        menuBar.add(searchMenu);
+        // Search menu items
+        ModManagerUtils.createMenuItem(searchMenu, "Find Usages...", _ -> findUsages());
+        ModManagerUtils.createMenuItem(searchMenu, "Search All Maps...", _ -> showSearchDialog());
     }
 
     /**
@@ -90,9 +130,11 @@ public class ScriptEditor {
             boolean canSave = currentMapFile != null;
             saveMapItem.setEnabled(canSave);
             saveScriptItem.setEnabled(canSave);
+            showError((index == -1) ? null : validators.get(index).getError());
         });
         window.add(tabbedPane, BorderLayout.CENTER);
         mapFileTabs = new ArrayList<>();
+        validators = new ArrayList<>();
     }
 
     /**
@@ -120,6 +162,25 @@ public class ScriptEditor {
         // Buttons
         ModManagerUtils.createButton(bottomPanel, "Load Map", _ -> loadMapFile());
         ModManagerUtils.createButton(bottomPanel, "Save to Mod", _ -> saveToMod());
+        // Algorithm used to find the changes when saving to a mod
+        diffAlgorithmBox = new JComboBox<>(Diff.Algorithm.values());
+        diffAlgorithmBox.setToolTipText("Histogram keeps changes together around unique lines, such as when moving blocks");
+        bottomPanel.add(diffAlgorithmBox);
+        bottomPanel.add(Box.createHorizontalStrut(25));
+
+        // Label for the first error in the header being edited
+        errorLabel = new JLabel();
+        errorLabel.setForeground(Color.RED);
+        bottomPanel.add(errorLabel);
+    }
+
+    /**
+     * Show an error from the selected tab's validator below the text area.
+     *
+     * @param error The error message, or null to clear it
+     */
+    private void showError(String error) {
+        errorLabel.setText((error == null) ? "" : error);
     }
 
     /**
@@ -146,6 +207,140 @@ public class ScriptEditor {
         }
     }
 
+    /**
+     * Show where a flag, function, item, or dialogue label is used in all maps, starting with the selected text or the
+     * name at the caret, and open the map at the usage that is chosen.
+     */
+    private void findUsages() {
+        ReferenceIndex referenceIndex = RedguardModManager.getReferenceIndex();
+        if (referenceIndex == null) {
+            ModManagerUtils.showWarning(window, "Map scripts are still being indexed. Try again in a moment.");
+            return;
+        }
+        String name = JOptionPane.showInputDialog(window, "Find usages of a flag, function, item, or dialogue label:",
+                getNameAtCaret());
+        if (name == null || name.isBlank()) return;
+        name = name.trim();
+        List<ReferenceIndex.Usage> usages = referenceIndex.find(name);
+        if (usages.isEmpty()) {
+            JOptionPane.showMessageDialog(window, "No usages of " + name + " were found.", "Find Usages",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Object[] usageArray = usages.toArray();
+        Object selection = JOptionPane.showInputDialog(window, usages.size() + " usage(s) of " + name + ". Choose one to open.",
+                "Find Usages", JOptionPane.PLAIN_MESSAGE, null, usageArray, usageArray[0]);
+        if (selection instanceof ReferenceIndex.Usage usage) {
+            openMapAtLine(usage.map(), usage.line());
+        }
+    }
+
+    /**
+     * Show a window for searching the text of all maps' scripts. Hits are listed with whole word matches first, and
+     * double-clicking or pressing enter on a hit opens its map at that line.
+     */
+    private void showSearchDialog() {
+        if (searchDialog != null) {
+            searchDialog.setVisible(true);
+            searchDialog.toFront();
+            return;
+        }
+        searchDialog = new JDialog(window, "Search All Maps");
+        searchDialog.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+        searchDialog.setPreferredSize(new Dimension(600, 400));
+
+        JTextField queryField = new JTextField();
+        JLabel resultLabel = new JLabel(" ");
+        DefaultListModel<ScriptSearchIndex.Hit> hitModel = new DefaultListModel<>();
+        JList<ScriptSearchIndex.Hit> hitList = new JList<>(hitModel);
+        hitList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        queryField.addActionListener(_ -> {
+            ScriptSearchIndex searchIndex = RedguardModManager.getScriptSearchIndex();
+            if (searchIndex == null) {
+                resultLabel.setText("Map scripts are still being indexed. Try again in a moment.");
+                return;
+            }
+            long start = System.nanoTime();
+            List<ScriptSearchIndex.Hit> hits = searchIndex.search(queryField.getText(), MAX_SEARCH_HITS);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            hitModel.clear();
+            hitModel.addAll(hits);
+            resultLabel.setText(hits.size() + ((hits.size() == MAX_SEARCH_HITS) ? "+" : "") + " hit(s) in "
+                    + elapsedMillis + " ms");
+        });
+        hitList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openSearchHit(hitList.getSelectedValue());
+                }
+            }
+        });
+        hitList.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    openSearchHit(hitList.getSelectedValue());
+                }
+            }
+        });
+
+        searchDialog.add(queryField, BorderLayout.NORTH);
+        searchDialog.add(new JScrollPane(hitList), BorderLayout.CENTER);
+        searchDialog.add(resultLabel, BorderLayout.SOUTH);
+        searchDialog.pack();
+        searchDialog.setLocationRelativeTo(window);
+        searchDialog.setVisible(true);
+    }
+
+    private void openSearchHit(ScriptSearchIndex.Hit hit) {
+        if (hit != null) {
+            openMapAtLine(hit.map(), hit.line());
+        }
+    }
+
+    /**
+     * Open a map in its tab, loading it if needed, and select a line of its script.
+     *
+     * @param mapName The name of the map
+     * @param line    The line to select, starting from 0
+     */
+    private void openMapAtLine(String mapName, int line) {
+        if (!openMap(mapDatabase.getMapFileFromName(mapName))) return;
+        JTextArea textArea = getSelectedTextArea();
+        try {
+            window.toFront();
+            textArea.requestFocus();
+            textArea.setCaretPosition(textArea.getLineStartOffset(line));
+            textArea.moveCaretPosition(textArea.getLineEndOffset(line));
+        } catch (BadLocationException e) {
+            // The script in the tab was edited to have fewer lines
+        }
+    }
+
+    private String getNameAtCaret() {
+        if (currentMapFile == null) return "";
+        JTextArea textArea = getSelectedTextArea();
+        if (textArea.getSelectedText() != null) {
+            return textArea.getSelectedText();
+        }
+        String text = textArea.getText();
+        int start = textArea.getCaretPosition();
+        int end = start;
+        while (start > 0 && isNameChar(text.charAt(start - 1))) {
+            start--;
+        }
+        while (end < text.length() && isNameChar(text.charAt(end))) {
+            end++;
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
     private JScrollPane getScrollPaneAt(int index) {
         return (JScrollPane) tabbedPane.getComponentAt(index);
     }
@@ -183,6 +378,13 @@ public class ScriptEditor {
             textArea.setLineWrap(true);
             textArea.setWrapStyleWord(true);
             textArea.setMargin(new Insets(5, 5, 5, 5));
+            ScriptValidator validator = new ScriptValidator(mapDatabase, textArea, validationExecutor, error -> {
+                if (getSelectedTextArea() == textArea) {
+                    showError(error);
+                }
+            });
+            validator.start();
+            validators.add(validator);
 
             tabbedPane.addTab(currentMapFile.getName(), new JScrollPane(textArea));
             createTabButton(tabIndex);
@@ -221,6 +423,7 @@ public class ScriptEditor {
     }
 
     private void removeTab(int index) {
+        validators.remove(index).stop();
         tabbedPane.removeTabAt(index);
         mapFileTabs.remove(index);
     }
@@ -230,13 +433,41 @@ public class ScriptEditor {
         MapFile selection = (MapFile) JOptionPane.showInputDialog(window, "Choose a map to load.",
                 "Load Map", JOptionPane.PLAIN_MESSAGE, null, mapFiles, mapFiles[0]);
         if (selection == null) return;
-        File fileToLoad = RedguardModManager.getBackupFile(selection.getFullName());
+        readMapIntoTab(selection);
+    }
+
+    /**
+     * Read a map from the backup folder and put its script into its tab.
+     *
+     * @param mapFile The map to read
+     * @return Whether the map was read
+     */
+    private boolean readMapIntoTab(MapFile mapFile) {
+        File fileToLoad = RedguardModManager.getBackupFile(mapFile.getFullName());
         try {
-            selection.readMap(fileToLoad);
-        } catch (IOException e) {
+            mapFile.readMap(fileToLoad);
+            // Headers are decompiled here, on first access to the script
+            addTab(mapFile, mapFile.getScript());
+            return true;
+        } catch (IOException | UncheckedIOException e) {
             ModManagerUtils.showError(window, "Failed to read map file: " + fileToLoad.getPath());
+            return false;
+        }
+    }
+
+    /**
+     * Select the tab for a map, loading the map into a new tab if it is not open.
+     *
+     * @param mapFile The map to show
+     * @return Whether the map is now in the selected tab
+     */
+    private boolean openMap(MapFile mapFile) {
+        int tabIndex = mapFileTabs.indexOf(mapFile);
+        if (tabIndex >= 0) {
+            tabbedPane.setSelectedIndex(tabIndex);
+            return true;
         }
-        addTab(selection, selection.getScript());
+        return readMapIntoTab(mapFile);
     }
 
     private void saveMapFile() {
@@ -252,7 +483,8 @@ public class ScriptEditor {
             try {
                 currentMapFile.writeMap(fileToSave, getSelectedTextArea().getText());
             } catch (IOException e) {
-                ModManagerUtils.showError(window, "Failed to save map file: " + fileToSave.getPath());
+                // Such as when saving over the backup that the map was read from
+                ModManagerUtils.showError(window, "Failed to save map file: " + e.getMessage());
             }
         }
     }
@@ -306,6 +538,91 @@ public class ScriptEditor {
         }
     }
 
+    /**
+     * Decompile every map into a chosen folder, as one file per map or a folder of header files per map, so that the
+     * scripts can be edited with other tools.
+     */
+    private void exportAllScripts() {
+        Path folder = chooseFolder("Export All Scripts", "Export");
+        if (folder == null) return;
+        int perHeader = JOptionPane.showConfirmDialog(window, "Write a separate file for each header?",
+                "Export All Scripts", JOptionPane.YES_NO_CANCEL_OPTION);
+        if (perHeader != JOptionPane.YES_OPTION && perHeader != JOptionPane.NO_OPTION) return;
+        runScriptBatch(exportScriptsItem, "script-export", () -> ScriptFolder.exportScripts(mapDatabase,
+                RedguardModManager.getBackupPath(), folder, perHeader == JOptionPane.YES_OPTION),
+                "Exporting scripts", "Exported scripts", "exported");
+    }
+
+    /**
+     * Compile a folder of scripts written by {@link #exportAllScripts()} into map files in another chosen folder.
+     */
+    private void importScriptsFolder() {
+        Path scriptFolder = chooseFolder("Choose Scripts Folder", "Choose");
+        if (scriptFolder == null) return;
+        Path mapFolder = chooseFolder("Choose Folder for Map Files", "Save");
+        if (mapFolder == null) return;
+        runScriptBatch(importScriptsItem, "script-import", () -> ScriptFolder.importScripts(mapDatabase,
+                RedguardModManager.getBackupPath(), scriptFolder, mapFolder),
+                "Compiling scripts", "Compiled scripts", "compiled");
+    }
+
+    @FunctionalInterface
+    private interface ScriptBatch {
+        MapBatch.Result<Path> run() throws InterruptedException;
+    }
+
+    /**
+     * Export or import the scripts of every map in the background, since each map is decompiled or compiled, and report
+     * the result once it finishes. Both menu items are disabled until then, since they work on the same folders.
+     *
+     * @param menuItem The menu item that started the batch
+     * @param action   What the batch does, for the interrupted message
+     */
+    private void runScriptBatch(JMenuItem menuItem, String threadName, ScriptBatch batch, String action,
+                                String logMessage, String verb) {
+        String menuText = menuItem.getText();
+        exportScriptsItem.setEnabled(false);
+        importScriptsItem.setEnabled(false);
+        menuItem.setText(menuText + " (Running...)");
+        Thread.ofPlatform().name(threadName).daemon().start(() -> {
+            try {
+                MapBatch.Result<Path> result = batch.run();
+                SwingUtilities.invokeLater(() -> showBatchResult(result, logMessage, verb));
+            } catch (InterruptedException e) {
+                SwingUtilities.invokeLater(() -> ModManagerUtils.showError(window, action + " was interrupted."));
+            } finally {
+                SwingUtilities.invokeLater(() -> {
+                    menuItem.setText(menuText);
+                    exportScriptsItem.setEnabled(true);
+                    importScriptsItem.setEnabled(true);
+                });
+            }
+        });
+    }
+
+    private Path chooseFolder(String title, String approveText) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle(title);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        int option = chooser.showDialog(window, approveText);
+        return (option == JFileChooser.APPROVE_OPTION) ? chooser.getSelectedFile().toPath() : null;
+    }
+
+    private void showBatchResult(MapBatch.Result<Path> result, String logMessage, String verb) {
+        logger.info(logMessage + ": " + result);
+        if (result.hasFailures()) {
+            StringBuilder message = new StringBuilder(result.getResults().size() + " map(s) were " + verb + ", but "
+                    + result.getFailures().size() + " failed:");
+            for (MapBatch.Failure failure : result.getFailures()) {
+                message.append("\n").append(failure);
+            }
+            ModManagerUtils.showError(window, message.toString());
+        } else {
+            JOptionPane.showMessageDialog(window, result.getResults().size() + " map(s) were " + verb + ".", TITLE,
+                    JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
     public void loadChangesFile(File fileToLoad) {
         MapChanges mapChanges = new MapChanges();
         try {
@@ -328,12 +645,20 @@ public class ScriptEditor {
     }
 
     private void saveChangesFile(File fileToSave) {
+        Diff.Algorithm algorithm = (Diff.Algorithm) diffAlgorithmBox.getSelectedItem();
         MapChanges mapChanges = new MapChanges();
         for (int i = 0; i < mapFileTabs.size(); i++) {
             MapFile mapFile = mapFileTabs.get(i);
-            String[] originalLines = mapFile.getScript().split("\n");
+            List<String> originalLines = new ArrayList<>();
+            try (LineWriter writer = new LineWriter(originalLines::add)) {
+                mapFile.writeScript(writer);
+            } catch (IOException e) {
+                ModManagerUtils.showError(window, "Failed to decompile map file: " + mapFile.getFullName());
+                return;
+            }
             String[] modifiedLines = getTextAreaAt(i).getText().split("\n");
-            mapChanges.addChanges(mapFile.getName(), Diff.diff(originalLines, modifiedLines));
+            mapChanges.addChanges(mapFile.getName(), Diff.diff(originalLines.toArray(new String[0]), modifiedLines,
+                    algorithm));
         }
         try {
             mapChanges.writeChanges(fileToSave);
@@ -0,0 +1,175 @@
+package modManager;
+
+import redguard.MapDatabase;
+import redguard.ScriptParser;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+import java.awt.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Checks a script text area for compile errors as it is edited. A short while after the last edit, only the header
+ * block around that edit is parsed, on a background executor, and the line with an error is highlighted.
+ */
+public class ScriptValidator implements DocumentListener {
+    // Time to wait after the last edit before checking
+    private static final int DELAY = 500;
+    private static final Highlighter.HighlightPainter ERROR_PAINTER =
+            new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 200, 200));
+
+    private final MapDatabase mapDatabase;
+    private final JTextArea textArea;
+    private final ExecutorService executor;
+    private final Consumer<String> errorListener;
+    private final Timer timer;
+    // Increased on every edit, so that checks of older text are skipped or thrown away
+    private volatile int generation;
+    private int editOffset;
+    private Object errorHighlight;
+    private String error;
+
+    /**
+     * @param mapDatabase   The map database with the names used by the script
+     * @param textArea      The text area to check
+     * @param executor      The executor that parses headers
+     * @param errorListener Called on the EDT with the error message after each check, or null if there is no error
+     */
+    public ScriptValidator(MapDatabase mapDatabase, JTextArea textArea, ExecutorService executor, Consumer<String> errorListener) {
+        this.mapDatabase = mapDatabase;
+        this.textArea = textArea;
+        this.executor = executor;
+        this.errorListener = errorListener;
+        timer = new Timer(DELAY, _ -> validate());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Start checking the text area after each edit. This is separate from the constructor so the validator is fully
+     * set up before the document can call it.
+     */
+    public void start() {
+        textArea.getDocument().addDocumentListener(this);
+    }
+
+    /**
+     * @return The error found by the last check, or null if there was none
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Stop checking the text area, such as when its tab is closed.
+     */
+    public void stop() {
+        timer.stop();
+        textArea.getDocument().removeDocumentListener(this);
+        generation++;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        edited(e.getOffset());
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        edited(e.getOffset());
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes do not change the script
+    }
+
+    private void edited(int offset) {
+        generation++;
+        editOffset = offset;
+        timer.restart();
+    }
+
+    /**
+     * Find the header block around the last edit and parse it in the background. A header block runs from the line
+     * after the previous header's closing brace to this header's closing brace, so it has the header's attributes.
+     */
+    private void validate() {
+        Document document = textArea.getDocument();
+        Element root = document.getDefaultRootElement();
+        int editLine = root.getElementIndex(Math.min(editOffset, document.getLength()));
+        int endLine = editLine;
+        while (endLine < root.getElementCount() - 1 && !isHeaderEnd(root, endLine)) {
+            endLine++;
+        }
+        int startLine = editLine;
+        while (startLine > 0 && !isHeaderEnd(root, startLine - 1)) {
+            startLine--;
+        }
+        // The first header also gets the map name and IDs, which the parser skips
+        if (startLine < 3) {
+            startLine = 0;
+        }
+        String text = getLines(root, startLine, endLine);
+        // Blank lines in front keep the parser's line numbers the same as the text area's
+        String script = "\n".repeat(startLine) + text;
+        int checkedGeneration = generation;
+        try {
+            executor.execute(() -> {
+                if (checkedGeneration != generation) {
+                    return;
+                }
+                ScriptParser parser = new ScriptParser(mapDatabase, script);
+                try {
+                    parser.parse();
+                    SwingUtilities.invokeLater(() -> showError(checkedGeneration, -1, null));
+                } catch (RuntimeException e) {
+                    int errorLine = parser.getLineNumber();
+                    String message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+                    SwingUtilities.invokeLater(() -> showError(checkedGeneration, errorLine, message));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The editor is closing
+        }
+    }
+
+    private void showError(int checkedGeneration, int errorLine, String message) {
+        if (checkedGeneration != generation) {
+            return;
+        }
+        if (errorHighlight != null) {
+            textArea.getHighlighter().removeHighlight(errorHighlight);
+            errorHighlight = null;
+        }
+        error = message;
+        Element root = textArea.getDocument().getDefaultRootElement();
+        if (message != null && errorLine >= 0 && errorLine < root.getElementCount()) {
+            Element line = root.getElement(errorLine);
+            try {
+                errorHighlight = textArea.getHighlighter().addHighlight(line.getStartOffset(), line.getEndOffset(), ERROR_PAINTER);
+            } catch (BadLocationException e) {
+                // The line is always in the document
+            }
+        }
+        textArea.setToolTipText(message);
+        errorListener.accept(message);
+    }
+
+    private boolean isHeaderEnd(Element root, int line) {
+        return getLines(root, line, line).stripTrailing().equals("}");
+    }
+
+    private String getLines(Element root, int startLine, int endLine) {
+        int start = root.getElement(startLine).getStartOffset();
+        int end = Math.min(root.getElement(endLine).getEndOffset(), textArea.getDocument().getLength());
+        try {
+            return textArea.getDocument().getText(start, end - start);
+        } catch (BadLocationException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package redguard;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Growable byte array for writing compiled script bytes, with no boxing and no temporary buffers per value. Slots can
+ * be reserved and filled in later, and labels are collected while writing and backpatched in place at the end.
+ */
+public class ByteEmitter {
+    private byte[] bytes;
+    private int size;
+    private final Map<Integer, LabelPositions> labels;
+
+    public ByteEmitter() {
+        this(256);
+    }
+
+    public ByteEmitter(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+        labels = new HashMap<>();
+    }
+
+    /**
+     * @return The number of bytes written so far, which is also where the next byte goes
+     */
+    public int position() {
+        return size;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    public void putByte(int value) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) value;
+    }
+
+    public void putBytes(byte[] values) {
+        ensureCapacity(values.length);
+        System.arraycopy(values, 0, bytes, size, values.length);
+        size += values.length;
+    }
+
+    public void putShort(int value, boolean littleEndian) {
+        ensureCapacity(2);
+        setShort(size, value, littleEndian);
+        size += 2;
+    }
+
+    public void putInt(int value, boolean littleEndian) {
+        ensureCapacity(4);
+        setInt(size, value, littleEndian);
+        size += 4;
+    }
+
+    /**
+     * Write four zero bytes to be filled in later with {@link #setInt(int, int, boolean)}.
+     *
+     * @return The position of the reserved slot
+     */
+    public int reserveInt() {
+        int slot = size;
+        putInt(0, true);
+        return slot;
+    }
+
+    public void setShort(int position, int value, boolean littleEndian) {
+        if (littleEndian) {
+            bytes[position] = (byte) value;
+            bytes[position + 1] = (byte) (value >> 8);
+        } else {
+            bytes[position] = (byte) (value >> 8);
+            bytes[position + 1] = (byte) value;
+        }
+    }
+
+    public void setInt(int position, int value, boolean littleEndian) {
+        for (int i = 0; i < 4; i++) {
+            int shift = littleEndian ? 8 * i : 8 * (3 - i);
+            bytes[position + i] = (byte) (value >> shift);
+        }
+    }
+
+    /**
+     * Record the current position for a label. The first position of a label is its target, and every other position
+     * is a slot that gets the target written into it by {@link #resolveLabels()}. A definition always becomes the
+     * target, and if a label is never defined, its first reference is the target.
+     *
+     * @param label      The label number
+     * @param definition True if this is where the label is defined, false if this is a reference to it
+     */
+    public void markLabel(int label, boolean definition) {
+        LabelPositions positions = labels.computeIfAbsent(label, _ -> new LabelPositions());
+        if (definition) {
+            positions.addFirst(size);
+        } else {
+            positions.add(size);
+        }
+    }
+
+    /**
+     * Write each label's target as a little-endian short into all of its reference slots.
+     */
+    public void resolveLabels() {
+        for (LabelPositions positions : labels.values()) {
+            for (int i = 1; i < positions.size; i++) {
+                setShort(positions.values[i], positions.values[0], true);
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the bytes written so far
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * Clear all bytes and labels so the emitter can be reused for another script.
+     */
+    public void reset() {
+        size = 0;
+        labels.clear();
+    }
+
+    private static class LabelPositions {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int position) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = position;
+        }
+
+        private void addFirst(int position) {
+            add(position);
+            System.arraycopy(values, 0, values, 1, size - 1);
+            values[0] = position;
+        }
+    }
+}
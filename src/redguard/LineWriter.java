@@ -0,0 +1,64 @@
+package redguard;
+
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * A writer that hands each line written to it to a consumer, without the line break, so long text can be used a line
+ * at a time without building it as one string. Text after the last line break is handed over when the writer is closed.
+ */
+public class LineWriter extends Writer {
+    private final Consumer<String> lineConsumer;
+    private final StringBuilder line;
+
+    public LineWriter(Consumer<String> lineConsumer) {
+        this.lineConsumer = lineConsumer;
+        line = new StringBuilder();
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] == '\n') {
+                line.append(buffer, start, i - start);
+                lineConsumer.accept(line.toString());
+                line.setLength(0);
+                start = i + 1;
+            }
+        }
+        line.append(buffer, start, end - start);
+    }
+
+    @Override
+    public Writer append(CharSequence text) {
+        if (text == null) {
+            text = "null";
+        }
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                line.append(text, start, i);
+                lineConsumer.accept(line.toString());
+                line.setLength(0);
+                start = i + 1;
+            }
+        }
+        line.append(text, start, text.length());
+        return this;
+    }
+
+    @Override
+    public void flush() {
+        // Lines are handed over as soon as they end
+    }
+
+    @Override
+    public void close() {
+        if (!line.isEmpty()) {
+            lineConsumer.accept(line.toString());
+            line.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package redguard;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a task over many map files at once on a bounded thread pool. Each map runs in isolation, so one map failing
+ * does not stop the others, and the result summarizes which maps finished and which failed.
+ */
+public class MapBatch {
+    @FunctionalInterface
+    public interface MapTask<T> {
+        T apply(MapFile mapFile) throws Exception;
+    }
+
+    public record Failure(MapFile mapFile, Exception exception) {
+        @Override
+        public String toString() {
+            return mapFile.getName() + ": " + exception;
+        }
+    }
+
+    public static class Result<T> {
+        private final Map<String, T> results;
+        private final List<Failure> failures;
+        private final long elapsedNanos;
+
+        private Result(Map<String, T> results, List<Failure> failures, long elapsedNanos) {
+            this.results = results;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return Results of the maps that finished, by map name, in the order the maps were given
+         */
+        public Map<String, T> getResults() {
+            return results;
+        }
+
+        public List<Failure> getFailures() {
+            return failures;
+        }
+
+        public boolean hasFailures() {
+            return !failures.isEmpty();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return results.size() + " maps finished and " + failures.size() + " failed in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms";
+        }
+    }
+
+    public static int defaultThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public static <T> Result<T> run(Collection<MapFile> mapFiles, MapTask<T> task) throws InterruptedException {
+        return run(mapFiles, task, defaultThreadCount());
+    }
+
+    /**
+     * Run a task over every map file and wait for all of them to finish.
+     *
+     * @param mapFiles    The map files to run the task on
+     * @param task        The task, which is called once for each map file, from several threads at once
+     * @param threadCount The most maps to work on at the same time
+     * @return The results and failures of every map
+     * @throws InterruptedException If interrupted while waiting, in which case unfinished maps are cancelled
+     */
+    public static <T> Result<T> run(Collection<MapFile> mapFiles, MapTask<T> task, int threadCount) throws InterruptedException {
+        long start = System.nanoTime();
+        List<MapFile> mapFileList = new ArrayList<>(mapFiles);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, mapFileList.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (MapFile mapFile : mapFileList) {
+                futures.add(executor.submit(() -> task.apply(mapFile)));
+            }
+
+            Map<String, T> results = new LinkedHashMap<>();
+            List<Failure> failures = new ArrayList<>();
+            for (int i = 0; i < mapFileList.size(); i++) {
+                MapFile mapFile = mapFileList.get(i);
+                try {
+                    results.put(mapFile.getName(), futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    failures.add(new Failure(mapFile, cause));
+                }
+            }
+            return new Result<>(results, failures, System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -5,26 +5,137 @@ import java.util.*;
 
 public class MapChanges {
     /**
-     * Stores a list of script line changes under their map name and position. Deletions are represented by a null first
-     * element. Insertions are all the other elements, guaranteed to not be null.
+     * Stores the script line changes of each map under its map name. A changes file writes a removed line as "null"
+     * before the lines added at its position.
      */
-    private final Map<String, Map<Integer, List<String>>> lineChanges;
+    private final Map<String, LineChanges> lineChanges;
+
+    /**
+     * The changes to one map's script, kept in arrays sorted by position instead of a list for each position, so they
+     * take little memory and can be walked in order alongside the script. The lines added at the position at an index
+     * are a range of one shared array of lines.
+     */
+    public static class LineChanges {
+        private int[] positions;
+        private boolean[] removed;
+        // Start of each position's added lines, with one more at the end for where the last position's lines end
+        private int[] lineStarts;
+        private String[] lines;
+        private int size;
+        private int numLines;
+
+        private LineChanges() {
+            positions = new int[4];
+            removed = new boolean[4];
+            lineStarts = new int[5];
+            lines = new String[4];
+        }
+
+        /**
+         * @return The number of positions with changes
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The script line at an index, where indexes are in increasing order of position
+         */
+        public int getPosition(int index) {
+            return positions[index];
+        }
+
+        /**
+         * @return Whether the script line at an index is removed
+         */
+        public boolean isRemoved(int index) {
+            return removed[index];
+        }
+
+        /**
+         * @return The lines added after the script line at an index
+         */
+        public List<String> getAddedLines(int index) {
+            return Arrays.asList(lines).subList(lineStarts[index], lineStarts[index + 1]);
+        }
+
+        private void add(int position, String line) {
+            int index = Arrays.binarySearch(positions, 0, size, position);
+            if (index < 0) {
+                index = -index - 1;
+                insertPosition(index, position);
+            }
+            if (line == null) {
+                removed[index] = true;
+                return;
+            }
+            // Changes are almost always added in order, so this is usually the end of the array
+            int lineIndex = lineStarts[index + 1];
+            if (numLines == lines.length) {
+                lines = Arrays.copyOf(lines, numLines * 2);
+            }
+            System.arraycopy(lines, lineIndex, lines, lineIndex + 1, numLines - lineIndex);
+            lines[lineIndex] = line;
+            numLines++;
+            for (int i = index + 1; i <= size; i++) {
+                lineStarts[i]++;
+            }
+        }
+
+        private void insertPosition(int index, int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                removed = Arrays.copyOf(removed, size * 2);
+                lineStarts = Arrays.copyOf(lineStarts, size * 2 + 1);
+            }
+            System.arraycopy(positions, index, positions, index + 1, size - index);
+            System.arraycopy(removed, index, removed, index + 1, size - index);
+            // The new position starts with no lines, where the lines of the position it is placed before started
+            System.arraycopy(lineStarts, index, lineStarts, index + 1, size + 1 - index);
+            positions[index] = position;
+            removed[index] = false;
+            size++;
+        }
+    }
 
     public MapChanges() {
         lineChanges = new HashMap<>();
     }
 
-    public List<String> lineChangesAt(String mapName, int pos) {
-        if (lineChanges.containsKey(mapName) && lineChanges.get(mapName).containsKey(pos)) {
-            return lineChanges.get(mapName).get(pos);
-        }
-        return null;
+    /**
+     * @param mapName The map name
+     * @return The changes for one map, or null if the map has no changes
+     */
+    public LineChanges getLineChanges(String mapName) {
+        return lineChanges.get(mapName);
     }
 
     public boolean hasModifiedMap(String mapName) {
         return lineChanges.containsKey(mapName);
     }
 
+    /**
+     * @param mapName The map name
+     * @return The changes for one map in the same form they are written to a changes file, or an empty string if the
+     * map has no changes
+     */
+    public String getChangesText(String mapName) {
+        StringBuilder sb = new StringBuilder();
+        LineChanges mapChanges = lineChanges.get(mapName);
+        if (mapChanges != null) {
+            for (int i = 0; i < mapChanges.size(); i++) {
+                int pos = mapChanges.getPosition(i);
+                if (mapChanges.isRemoved(i)) {
+                    sb.append("  ").append(pos).append("\tnull\n");
+                }
+                for (String line : mapChanges.getAddedLines(i)) {
+                    sb.append("  ").append(pos).append('\t').append(line).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
     public void addChanges(String mapName, Map<Integer, List<String>> mapChanges) {
         for (int pos : mapChanges.keySet()) {
             for (String line : mapChanges.get(pos)) {
@@ -33,21 +144,11 @@ public class MapChanges {
         }
     }
 
+    /**
+     * @param line The line to add after the position, or null to remove the line at the position
+     */
     public void addChange(String mapName, int pos, String line) {
-        if (!lineChanges.containsKey(mapName)) {
-            lineChanges.put(mapName, new TreeMap<>());
-        }
-        if (!lineChanges.get(mapName).containsKey(pos)) {
-            lineChanges.get(mapName).put(pos, new LinkedList<>());
-        }
-        List<String> list = lineChanges.get(mapName).get(pos);
-        if (line == null) {
-            if (list.isEmpty() || list.getFirst() != null) {
-                list.addFirst(null);
-            }
-        } else {
-            list.add(line);
-        }
+        lineChanges.computeIfAbsent(mapName, _ -> new LineChanges()).add(pos, line);
     }
 
     public void readChanges(File changesFile) throws IOException {
@@ -58,15 +159,12 @@ public class MapChanges {
             if (!trim.isEmpty()) {
                 if (line.charAt(0) != ' ') {
                     currentMap = trim;
-                    lineChanges.put(currentMap, new TreeMap<>());
+                    lineChanges.put(currentMap, new LineChanges());
                 } else {
                     String[] split = line.split("\t");
                     int pos = Integer.parseInt(split[0].trim());
-                    if (!lineChanges.get(currentMap).containsKey(pos)) {
-                        lineChanges.get(currentMap).put(pos, new LinkedList<>());
-                    }
                     String change = split.length > 1 ? split[1] : "";
-                    addChange(currentMap, pos, change);
+                    addChange(currentMap, pos, change.equals("null") ? null : change);
                 }
             }
         }
@@ -78,9 +176,14 @@ public class MapChanges {
         for (String mapName : lineChanges.keySet()) {
             writer.write(mapName);
             writer.newLine();
-            for (int pos : lineChanges.get(mapName).keySet()) {
-                List<String> list = lineChanges.get(mapName).get(pos);
-                for (String line : list) {
+            LineChanges mapChanges = lineChanges.get(mapName);
+            for (int i = 0; i < mapChanges.size(); i++) {
+                int pos = mapChanges.getPosition(i);
+                if (mapChanges.isRemoved(i)) {
+                    writer.write("  " + pos + "\tnull");
+                    writer.newLine();
+                }
+                for (String line : mapChanges.getAddedLines(i)) {
                     writer.write("  " + pos + "\t" + line);
                     writer.newLine();
                 }
@@ -88,4 +191,4 @@ public class MapChanges {
         }
         writer.close();
     }
-}
\ No newline at end of file
+}
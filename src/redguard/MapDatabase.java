@@ -18,6 +18,8 @@ public class MapDatabase {
     private final Map<String, String> rtxEntries;
     private final Map<String, MapFile> mapNames;
     private final Map<Integer, MapFile> mapIds;
+    private ScriptCache scriptCache;
+    private SymbolTable symbolTable;
 
     public MapDatabase(RtxDatabase rtxDatabase) {
         mapFiles = new ArrayList<>();
@@ -38,6 +40,34 @@ public class MapDatabase {
         return rtxEntries;
     }
 
+    /**
+     * @return The cache of decompiled scripts, or null if scripts are always decompiled
+     */
+    public ScriptCache getScriptCache() {
+        return scriptCache;
+    }
+
+    public void setScriptCache(ScriptCache scriptCache) {
+        this.scriptCache = scriptCache;
+    }
+
+    /**
+     * Get the names-to-ids table for compiling scripts, building it the first time it is needed after the database
+     * was loaded.
+     *
+     * @return The symbol table, shared by all parsers
+     */
+    public synchronized SymbolTable getSymbolTable() {
+        if (symbolTable == null) {
+            symbolTable = new SymbolTable(this);
+        }
+        return symbolTable;
+    }
+
+    private synchronized void clearSymbolTable() {
+        symbolTable = null;
+    }
+
     public List<MapFile> getMapFiles() {
         return mapFiles;
     }
@@ -71,6 +101,7 @@ public class MapDatabase {
     }
 
     public void readWorldFile(File worldFile) throws IOException {
+        clearSymbolTable();
         BufferedReader reader = new BufferedReader(new FileReader(worldFile));
         for (String line = reader.readLine(); line != null; line = reader.readLine()) {
             if (line.startsWith("world_map")) {
@@ -95,6 +126,7 @@ public class MapDatabase {
     }
 
     public void readSoupFile(File soupFile) throws IOException {
+        clearSymbolTable();
         functions.add(new SoupFunction("function NullFunction params 0"));
         BufferedReader reader = new BufferedReader(new FileReader(soupFile));
 
@@ -136,6 +168,7 @@ public class MapDatabase {
     }
 
     public void readItemsFile(File itemsFile) throws IOException {
+        clearSymbolTable();
         BufferedReader reader = new BufferedReader(new FileReader(itemsFile));
         for (String line = reader.readLine(); line != null; line = reader.readLine()) {
             if (line.startsWith("name")) {
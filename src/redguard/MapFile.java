@@ -1,24 +1,38 @@
 package redguard;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class MapFile {
+    // The game's maps store every string separately. Merging shared suffixes makes RAST smaller, but then maps no
+    // longer round-trip byte for byte.
+    private static final boolean MERGE_STRING_SUFFIXES = false;
+
     private final MapDatabase mapDatabase;
     private final String name, fullName;
     private final List<Integer> ids;
-    private final Map<String, byte[]> records;
+    private MapRecords records;
     private final List<MapHeader> mapHeaders;
+    private final Map<String, PlacementTable> placementTables;
     private int scriptDataOffset;
+    // Key for this map's scripts in the database's script cache, or null if they should not be cached
+    private String scriptCacheKey;
 
     public MapFile(MapDatabase mapDatabase, String name) {
         this.mapDatabase = mapDatabase;
         this.name = name;
         fullName = "MAPS/" + name + ".RGM";
         ids = new ArrayList<>();
-        records = new HashMap<>();
         mapHeaders = new ArrayList<>();
+        placementTables = new HashMap<>();
     }
 
     public String getFullName() {
@@ -37,75 +51,62 @@ public class MapFile {
         ids.add(id);
     }
 
+    /**
+     * Read this map into a new map file with the same name and IDs, so a map that is already loaded is left alone and
+     * the copy's script starts with the same preamble.
+     *
+     * @param sourceFolder The folder to read the map file from, which has the maps folder in it
+     * @return The new map file
+     */
+    public MapFile readCopy(Path sourceFolder) throws IOException {
+        MapFile copy = new MapFile(mapDatabase, name);
+        copy.ids.addAll(ids);
+        copy.readMap(sourceFolder.resolve(fullName).toFile());
+        return copy;
+    }
+
     public void readMap(File fileToRead) throws IOException {
-        records.clear();
         mapHeaders.clear();
-
-        DataInputStream input = new DataInputStream(new FileInputStream(fileToRead));
-        while (input.available() > 0) {
-            String name = Utils.readString(input, 4);
-            if (name.equals("END ")) {
-                break;
-            }
-            int length = input.readInt();
-            records.put(name, Utils.readBytes(input, length));
-        }
-        input.close();
+        placementTables.clear();
+        records = new MapRecords(fileToRead);
+        scriptCacheKey = null;
 
         // RAFS - Fsphere
 
         // RAHD - Headers
-        byte[] headerBytes = records.get("RAHD");
-        int numMapHeaders = Utils.byteRangeToInt(headerBytes, 0, 4, true);
-        for (int i = 0; i < numMapHeaders; i++) {
-            int start = 8 + i * 165;
-            byte[] subrecord = Arrays.copyOfRange(headerBytes, start, start + 165);
-            mapHeaders.add(new MapHeader(subrecord));
-        }
-
-        // RAST - String tables
-        String allStrings = new String(records.get("RAST"));
-
-        // RASB - String offsets for RAST
-        byte[] stringOffsets = records.get("RASB");
-
-        // RAVA - Local variables
-        byte[] variableBytes = records.get("RAVA");
-        List<Integer> variables = new ArrayList<>();
-        for (int i = 0; i < variableBytes.length / 4; i++) {
-            variables.add(Utils.byteRangeToInt(variableBytes, i * 4, 4, true));
+        // Strings (RAST, RASB), variables (RAVA), scripts (RASC), and attributes (RAAT) are sliced out of their records
+        // by each header when first needed, and each header's script is only decompiled when it is first requested
+        ByteBuffer headerBytes = records.get("RAHD");
+        int numMapHeaders = headerBytes.getInt(0);
+        if (numMapHeaders > 0) {
+            // RASC - Scripts, starting at the first header's script data offset
+            scriptDataOffset = headerBytes.getInt(8 + 81);
+            int scriptPos = scriptDataOffset;
+            for (int i = 0; i < numMapHeaders; i++) {
+                MapHeader header = new MapHeader(mapDatabase, records, i, scriptPos);
+                mapHeaders.add(header);
+                scriptPos += header.getScriptLength();
+            }
         }
 
-        // RASC - Scripts
-        scriptDataOffset = mapHeaders.getFirst().getScriptDataOffset();
-        int scriptPos = scriptDataOffset;
-
-        // Initialize map headers
-        for (MapHeader header : mapHeaders) {
-            header.initStrings(allStrings, stringOffsets);
-            header.initVariables(variables);
-
-            // Read this header's part of the script
-            byte[] scriptBytes = Arrays.copyOfRange(records.get("RASC"), scriptPos, scriptPos + header.getScriptLength());
-            scriptPos += header.getScriptLength();
-            header.setScriptBytes(scriptBytes);
+        // Use header scripts decompiled in an earlier session if this exact map was cached
+        ScriptCache scriptCache = mapDatabase.getScriptCache();
+        if (scriptCache != null) {
+            String key = scriptCache.getKey(fileToRead.toPath());
+            List<String> cachedScripts = scriptCache.load(name, key);
+            if (cachedScripts != null && cachedScripts.size() == mapHeaders.size()) {
+                for (int i = 0; i < mapHeaders.size(); i++) {
+                    mapHeaders.get(i).setCachedScript(cachedScripts.get(i));
+                }
+            } else {
+                scriptCacheKey = key;
+            }
         }
 
         // RAHK - Hooks
         // RALC - Locations
         // RAEX - Extra
-
-        //RAAT - Attributes
-        for (int i = 0; i < mapHeaders.size(); i++) {
-            byte[] attributeBytes = Arrays.copyOfRange(records.get("RAAT"), i * 256, (i + 1) * 256);
-            mapHeaders.get(i).setAttributeBytes(attributeBytes);
-        }
-
-        for (MapHeader header : mapHeaders) {
-            ScriptReader scriptReader = new ScriptReader(mapDatabase, header);
-            header.setScript(scriptReader.read());
-        }
-
+        // RAAT - Attributes
         // RAAN - Animation file
         // RAGR - Animation group
         // RANM - Name space
@@ -115,186 +116,571 @@ public class MapFile {
         // MPSL - Lights
         // MPSF - Flats
         // MPMK - Markers
+        // (MPOB, MPSO, MPSL, MPSF, and MPMK are decoded into columns by getPlacements when needed)
         // MPSZ - Sizes
         // WDNM - Node maps
         // FLAT - Flats
     }
 
+    /**
+     * Get a column view of one of this map's placement records, creating it the first time it is requested. Columns
+     * decoded from the table are written back by {@link #writeMap(File, List)}, so changes to them are saved.
+     *
+     * @param recordName One of {@link PlacementTable#RECORD_NAMES}
+     * @return The table, or null if this map does not have the record
+     * @throws IOException If the record's length does not match its entry count
+     */
+    public PlacementTable getPlacements(String recordName) throws IOException {
+        PlacementTable table = placementTables.get(recordName);
+        if (table == null && records.has(recordName)) {
+            table = new PlacementTable(recordName, records.get(recordName));
+            placementTables.put(recordName, table);
+        }
+        return table;
+    }
+
     public boolean isEmpty() {
         return mapHeaders.isEmpty();
     }
 
+    List<MapHeader> getMapHeaders() {
+        return mapHeaders;
+    }
+
     public void writeMap(File fileToWrite, String script) throws IOException {
-        DataOutputStream output = new DataOutputStream(new FileOutputStream(fileToWrite));
         ScriptParser scriptParser = new ScriptParser(mapDatabase, script);
-        List<ParsedMapHeader> parsedHeaders = scriptParser.parse();
+        writeMap(fileToWrite, scriptParser.parse());
+    }
 
-        // RAHD - Headers
-        output.writeBytes("RAHD"); // Section name
-        output.writeInt(8 + parsedHeaders.size() * 165); // Section length
-        Utils.writeLittleEndianInt(output, parsedHeaders.size()); // Number of headers
-        // Always the same four bytes
-        output.writeByte(27);
-        output.writeByte(128);
-        output.writeByte(55);
-        output.writeByte(0);
+    /**
+     * Write a map file using parsed headers for the script records and this map's records for everything else. All
+     * rebuilt records are laid out in pre-sized buffers and written with a single gathering write. The unchanged
+     * records at the end of the file are transferred straight from the file this map was read from.
+     * <p>
+     * The file this map was read from stays memory-mapped, and Java cannot unmap it, so it can never be the file written.
+     * Replacing a mapped file fails on Windows, and truncating it can crash anything still reading the mapping.
+     *
+     * @param fileToWrite   The map file to write, which must not be the file this map was read from
+     * @param parsedHeaders The parsed headers, in the same order as this map's headers
+     * @throws IOException If the map file could not be written or is the file this map was read from
+     */
+    public void writeMap(File fileToWrite, List<ParsedMapHeader> parsedHeaders) throws IOException {
+        // RAST - All strings
+        StringPool strings = new StringPool();
+        for (ParsedMapHeader header : parsedHeaders) {
+            for (String str : header.getStrings()) {
+                strings.add(str);
+            }
+        }
+        byte[] rastBytes = strings.pack(MERGE_STRING_SUFFIXES);
+
+        // Work out every rebuilt record's length up front
+        int numStrings = 0;
+        int totalScriptLength = 0;
+        for (ParsedMapHeader parsedHeader : parsedHeaders) {
+            numStrings += parsedHeader.getStrings().size();
+            totalScriptLength += parsedHeader.getScriptBytes().length;
+        }
+        int numVariables = 1;
+        for (MapHeader header : mapHeaders) {
+            numVariables += header.getInstances() * header.getVariables().size();
+        }
+        int rahdLength = 8 + parsedHeaders.size() * MapHeader.LENGTH;
+        int rasbLength = numStrings * 4;
+        int ravaLength = numVariables * 4;
+        int rascLength = scriptDataOffset + totalScriptLength;
+        int raatLength = parsedHeaders.size() * MapHeader.ATTRIBUTES_LENGTH;
+
+        ByteBuffer scriptRecords = ByteBuffer.allocate(MapRecord.HEADER_LENGTH * 6 + rahdLength + 1 + rastBytes.length
+                + rasbLength + ravaLength + rascLength).order(ByteOrder.LITTLE_ENDIAN);
 
+        // RAHD - Headers
+        putRecordHeader(scriptRecords, "RAHD", rahdLength);
+        scriptRecords.putInt(parsedHeaders.size()); // Number of headers
+        scriptRecords.put(new byte[] {27, (byte) 128, 55, 0}); // Always the same four bytes
         // Copy possibly new script information to header data
+        int scriptOffset = 0;
+        int stringOffsetsIndex = 0;
         for (int i = 0; i < mapHeaders.size(); i++) {
             ParsedMapHeader parsedHeader = parsedHeaders.get(i);
-            byte[] data = mapHeaders.get(i).getData();
-
-            // Script length, calculated by the script parser
-            byte[] scriptLength = Utils.intToByteArray(parsedHeader.getScriptBytes().length, true);
-            System.arraycopy(scriptLength, 0, data, 77, 4);
-            // Script offset, from parser
-            int dataOffset = scriptDataOffset + parsedHeader.getScriptDataOffset();
-            byte[] scriptDataOffset = Utils.intToByteArray(dataOffset, true);
-            System.arraycopy(scriptDataOffset, 0, data, 81, 4);
-            // Execution offset, also from parser
-            byte[] scriptPC = Utils.intToByteArray(parsedHeader.getScriptPC(), true);
-            System.arraycopy(scriptPC, 0, data, 85, 4);
-
-            output.write(data);
+            int start = scriptRecords.position();
+            scriptRecords.put(mapHeaders.get(i).getData());
+            scriptRecords.putInt(start + 65, parsedHeader.getStrings().size()); // Number of strings
+            scriptRecords.putInt(start + 73, stringOffsetsIndex); // Index for header in RASB
+            stringOffsetsIndex += parsedHeader.getStrings().size() * 4;
+            scriptRecords.putInt(start + 77, parsedHeader.getScriptBytes().length); // Script length
+            scriptRecords.putInt(start + 81, scriptDataOffset + scriptOffset); // Script offset
+            scriptRecords.putInt(start + 85, parsedHeader.getScriptPC()); // Execution offset
+            scriptOffset += parsedHeader.getScriptBytes().length;
         }
 
         // RAFS - Fsphere
-        output.writeBytes("RAFS"); // Section header
-        output.writeInt(1); // Always length 1
-        output.writeByte(0);
+        putRecordHeader(scriptRecords, "RAFS", 1); // Always length 1
+        scriptRecords.put((byte) 0);
 
         // RAST - All strings
-        Set<String> strings = new LinkedHashSet<>();
-        for (ParsedMapHeader header : parsedHeaders) {
-            strings.addAll(header.getStrings());
-        }
-        StringBuilder rast = new StringBuilder();
-        for (String str : strings) {
-            rast.append(str).append("\u0000");
-        }
-        output.writeBytes("RAST"); // Section header
-        output.writeInt(rast.length()); // Section length
-        output.writeBytes(rast.toString());
+        putRecordHeader(scriptRecords, "RAST", rastBytes.length);
+        scriptRecords.put(rastBytes);
 
         // RASB - String offsets for RAST
-        ByteArrayOutputStream rasb = new ByteArrayOutputStream();
+        putRecordHeader(scriptRecords, "RASB", rasbLength);
         for (ParsedMapHeader header : parsedHeaders) {
             for (String str : header.getStrings()) {
-                rasb.write(Utils.intToByteArray(rast.indexOf(str), true));
+                scriptRecords.putInt(strings.getOffset(str));
             }
         }
-        output.writeBytes("RASB"); // Section header
-        output.writeInt(rasb.size()); // Section length
-        output.write(rasb.toByteArray());
 
         // RAVA - Local variables
-        ByteArrayOutputStream rava = new ByteArrayOutputStream();
-        rava.write(new byte[] {0, 0, 0, 0});
+        putRecordHeader(scriptRecords, "RAVA", ravaLength);
+        scriptRecords.putInt(0);
         for (MapHeader header : mapHeaders) {
             for (int j = 0; j < header.getInstances(); j++) {
                 for (int variable : header.getVariables()) {
-                    rava.write(Utils.intToByteArray(variable, true));
+                    scriptRecords.putInt(variable);
                 }
             }
         }
-        output.writeBytes("RAVA"); // Section header
-        output.writeInt(rava.size()); // Section length
-        output.write(rava.toByteArray());
 
         // RASC - Scripts
-        output.writeBytes("RASC"); // Section header
-        output.writeInt(scriptDataOffset + scriptParser.getTotalScriptLength()); // Section length
-        // Initial data offset, all zeros
-        for (int i = 0; i < scriptDataOffset; i++) {
-            output.writeByte(0);
-        }
+        putRecordHeader(scriptRecords, "RASC", rascLength);
+        // Initial data offset, all zeros, which a fresh buffer already is
+        scriptRecords.position(scriptRecords.position() + scriptDataOffset);
         // Write parsed scripts
         for (ParsedMapHeader parsedHeader : parsedHeaders) {
-            output.write(parsedHeader.getScriptBytes());
+            scriptRecords.put(parsedHeader.getScriptBytes());
         }
 
-        // Write records between script and attributes
-        copyRecordsToOutput(output, "RAHK", "RALC", "RAEX");
-
         // RAAT - Attributes
-        output.writeBytes("RAAT");
-        output.write(Utils.intToByteArray(parsedHeaders.size() * 256, false));
+        ByteBuffer attributeRecord = ByteBuffer.allocate(MapRecord.HEADER_LENGTH + raatLength);
+        putRecordHeader(attributeRecord, "RAAT", raatLength);
         for (ParsedMapHeader parsedHeader : parsedHeaders) {
-            output.write(parsedHeader.getAttributeBytes());
+            attributeRecord.put(parsedHeader.getAttributeBytes());
+        }
+
+        // Records between script and attributes are unchanged, so they are gathered straight from the mapped file
+        List<ByteBuffer> buffers = new ArrayList<>();
+        buffers.add(scriptRecords.flip());
+        for (String recordName : new String[] {"RAHK", "RALC", "RAEX"}) {
+            if (records.has(recordName)) {
+                buffers.add(records.getWithHeader(recordName));
+            }
         }
+        buffers.add(attributeRecord.flip());
 
-        // Write remaining records
-        copyRecordsToOutput(output, "RAAN", "RAGR", "RANM", "MPOB", "MPRP", "MPSO", "MPSL", "MPSF", "MPMK", "MPSZ", "WDNM", "FLAT");
-        output.writeBytes("END ");
-        output.close();
+        Path target = fileToWrite.toPath();
+        if (Files.exists(target) && Files.isSameFile(target, records.getPath())) {
+            throw new IOException("Cannot write map over the file it was read from: " + target);
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] bufferArray = buffers.toArray(new ByteBuffer[0]);
+            while (bufferArray[bufferArray.length - 1].hasRemaining()) {
+                channel.write(bufferArray);
+            }
+
+            // Transfer remaining records from the source file, one transfer for each contiguous run of records, except
+            // for placement records that may have been changed through their columns
+            transferRecords(channel, "RAAN", "RAGR", "RANM", "MPOB", "MPRP", "MPSO", "MPSL", "MPSF", "MPMK", "MPSZ", "WDNM", "FLAT");
+
+            ByteBuffer end = ByteBuffer.wrap("END ".getBytes(StandardCharsets.ISO_8859_1));
+            while (end.hasRemaining()) {
+                channel.write(end);
+            }
+        }
+    }
+
+    private static void putRecordHeader(ByteBuffer buffer, String recordName, int length) {
+        buffer.put(recordName.getBytes(StandardCharsets.ISO_8859_1));
+        // Record lengths are the only big-endian values in a map file
+        buffer.order(ByteOrder.BIG_ENDIAN).putInt(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void transferRecords(FileChannel target, String... recordNames) throws IOException {
+        try (FileChannel source = FileChannel.open(records.getPath(), StandardOpenOption.READ)) {
+            long runStart = -1;
+            long runEnd = -1;
+            for (String recordName : recordNames) {
+                MapRecord record = records.getRecord(recordName);
+                if (record == null) {
+                    continue;
+                }
+                PlacementTable table = placementTables.get(recordName);
+                if (table != null && table.hasDecodedColumns()) {
+                    transferRange(source, target, runStart, runEnd);
+                    runStart = runEnd = -1;
+                    ByteBuffer data = table.encode();
+                    ByteBuffer header = ByteBuffer.allocate(MapRecord.HEADER_LENGTH);
+                    putRecordHeader(header, recordName, data.remaining());
+                    ByteBuffer[] buffers = {header.flip(), data};
+                    while (data.hasRemaining()) {
+                        target.write(buffers);
+                    }
+                    continue;
+                }
+                if (record.headerOffset() != runEnd) {
+                    transferRange(source, target, runStart, runEnd);
+                    runStart = record.headerOffset();
+                }
+                runEnd = record.end();
+            }
+            transferRange(source, target, runStart, runEnd);
+        }
     }
 
-    private void copyRecordsToOutput(DataOutputStream output, String... recordNames) throws IOException {
-        for (String recordName : recordNames) {
-            output.writeBytes(recordName);
-            byte[] data = records.get(recordName);
-            output.write(Utils.intToByteArray(data.length, false));
-            output.write(data);
+    private static void transferRange(FileChannel source, FileChannel target, long start, long end) throws IOException {
+        long pos = start;
+        while (pos < end) {
+            pos += source.transferTo(pos, end - pos, target);
         }
     }
 
     public String getScript() {
             StringBuilder sb = new StringBuilder();
-            sb.append("Maps\\").append(name).append(".RGM\nID");
-            if (ids.size() > 1) {
-                sb.append("s");
-            }
-            sb.append(": ").append(ids.stream().map(String::valueOf).collect(Collectors.joining(", "))).append("\n\n");
-            for (int i = 0; i < mapHeaders.size(); i++) {
-                MapHeader mapHeader = mapHeaders.get(i);
-                if (i > 0) {
-                    sb.append("\n\n");
-                }
-                if (mapHeader.getVariables().size() > 4) {
-                    for (int j = 2; j < mapHeader.getVariables().size() - 2; j++) {
-                        sb.append("var").append(j).append(" = ").append(mapHeader.getVariables().get(j)).append("\n");
-                        if (j == mapHeader.getVariables().size() - 3) {
-                            sb.append("\n");
-                        }
+            try {
+                appendPreamble(sb);
+                for (int i = 0; i < mapHeaders.size(); i++) {
+                    if (i > 0) {
+                        sb.append("\n\n");
                     }
+                    appendHeaderPrefix(sb, mapHeaders.get(i));
+                    sb.append(mapHeaders.get(i).getScript());
                 }
-                boolean hasAttribute = false;
-                for (int j = 0; j < mapHeader.getAttributeBytes().length; j++) {
-                    byte value = mapHeader.getAttributeBytes()[j];
-                    if (value != 0) {
-                        String name = mapDatabase.getAttributes().get(j);
-                        sb.append(name).append(" = ").append(value).append("\n");
-                        hasAttribute = true;
-                    }
+            } catch (IOException e) {
+                // A StringBuilder does not throw
+                throw new UncheckedIOException(e);
+            }
+
+            // Every header has been decompiled now, so cache them for next time
+            if (scriptCacheKey != null) {
+                mapDatabase.getScriptCache().store(name, scriptCacheKey, mapHeaders.stream().map(MapHeader::getScript).toList());
+                scriptCacheKey = null;
+            }
+            return sb.toString();
+    }
+
+    /**
+     * Write the same script as {@link #getScript()}, one header at a time. Headers that have not been decompiled yet
+     * are decompiled straight into the writer and not kept, so the whole script is never held in memory.
+     *
+     * @param out Where to write the script, such as a {@link Writer} or a {@link LineWriter}
+     * @throws IOException If a header could not be decompiled or writing fails
+     */
+    public void writeScript(Appendable out) throws IOException {
+        appendPreamble(out);
+        for (int i = 0; i < mapHeaders.size(); i++) {
+            if (i > 0) {
+                out.append("\n\n");
+            }
+            writeHeaderScript(out, i);
+        }
+    }
+
+    /**
+     * Write one header's part of {@link #getScript()}, which is its variables, attributes, and script. Joining the parts
+     * of every header with a blank line between them, after the map name and IDs, gives the whole script.
+     *
+     * @param out   Where to write the header's part of the script
+     * @param index The index of the header
+     * @throws IOException If the header could not be decompiled or writing fails
+     */
+    void writeHeaderScript(Appendable out, int index) throws IOException {
+        appendHeaderPrefix(out, mapHeaders.get(index));
+        mapHeaders.get(index).writeScript(out);
+    }
+
+    // The map name and IDs
+    private void appendPreamble(Appendable out) throws IOException {
+        out.append("Maps\\").append(name).append(".RGM\nID");
+        if (ids.size() > 1) {
+            out.append("s");
+        }
+        out.append(": ").append(ids.stream().map(String::valueOf).collect(Collectors.joining(", "))).append("\n\n");
+    }
+
+    // The variables and attributes that go in front of a header
+    private void appendHeaderPrefix(Appendable out, MapHeader mapHeader) throws IOException {
+        if (mapHeader.getVariables().size() > 4) {
+            for (int j = 2; j < mapHeader.getVariables().size() - 2; j++) {
+                out.append("var").append(String.valueOf(j)).append(" = ")
+                        .append(String.valueOf(mapHeader.getVariables().get(j))).append("\n");
+                if (j == mapHeader.getVariables().size() - 3) {
+                    out.append("\n");
+                }
+            }
+        }
+        boolean hasAttribute = false;
+        for (int j = 0; j < mapHeader.getAttributeBytes().length; j++) {
+            byte value = mapHeader.getAttributeBytes()[j];
+            if (value != 0) {
+                String name = mapDatabase.getAttributes().get(j);
+                out.append(name).append(" = ").append(String.valueOf(value)).append("\n");
+                hasAttribute = true;
+            }
+        }
+        if (hasAttribute) {
+            out.append("\n");
+        }
+    }
+
+    /**
+     * Write this map with changes from mods applied to its script. Only headers that have changed lines are parsed
+     * again, and every other header keeps its original script bytes. If the changes reach outside the headers, or a
+     * changed header does not parse back to a single header, the whole modified script is parsed instead.
+     *
+     * @param fileToWrite The map file to write
+     * @param mapChanges  The changes to apply
+     * @throws IOException If the map file could not be written
+     */
+    public void writeMap(File fileToWrite, MapChanges mapChanges) throws IOException {
+        List<ParsedMapHeader> parsedHeaders = parseChangedHeaders(mapChanges);
+        if (parsedHeaders == null) {
+            // The parser reads the modified lines as they are made, so the whole script is never built
+            writeMap(fileToWrite, new ScriptParser(mapDatabase, new ModifiedScriptLines(mapChanges)).parse());
+        } else {
+            writeMap(fileToWrite, parsedHeaders);
+        }
+    }
+
+    /**
+     * Apply changes to the script and parse only the headers they touch. Each line of the script belongs to the header
+     * whose block it is in, and a blank line between blocks belongs to the next header. Lines inserted right after a
+     * header's closing brace are attributes or variables for the next header, so they belong to it too. The script is
+     * read a header at a time, and each header is parsed as soon as all of its lines are read.
+     *
+     * @param mapChanges The changes to apply
+     * @return Parsed headers for the whole map, or null if the whole script needs to be parsed
+     */
+    private List<ParsedMapHeader> parseChangedHeaders(MapChanges mapChanges) {
+        int numHeaders = mapHeaders.size();
+        if (numHeaders == 0) {
+            return null;
+        }
+
+        // Modified lines of the header being read and of the one after it
+        List<String> headerLines = new ArrayList<>();
+        List<String> nextHeaderLines = new ArrayList<>();
+        boolean changed = false;
+        boolean nextChanged = false;
+        List<ParsedMapHeader> parsedHeaders = new ArrayList<>();
+        ScriptLines scriptLines = new ScriptLines();
+        MapChanges.LineChanges lineChanges = mapChanges.getLineChanges(name);
+        int numChanges = (lineChanges == null) ? 0 : lineChanges.size();
+        int change = firstChangeInScript(lineChanges);
+        int header = 0;
+        for (int pos = 0; scriptLines.hasNext(); pos++) {
+            String scriptLine = scriptLines.next();
+            while (pos > scriptLines.getHeaderEndLine(header)) {
+                ParsedMapHeader parsed = parseHeader(header, headerLines, changed);
+                if (parsed == null) {
+                    return null;
                 }
-                if (hasAttribute) {
-                    sb.append("\n");
+                parsedHeaders.add(parsed);
+                header++;
+                headerLines = nextHeaderLines;
+                nextHeaderLines = new ArrayList<>();
+                changed = nextChanged;
+                nextChanged = false;
+            }
+            // The map name and IDs are not part of any header, but the blank line after them belongs to the first
+            boolean inPreamble = pos < 2;
+            if (change == numChanges || lineChanges.getPosition(change) != pos) {
+                if (!inPreamble) {
+                    headerLines.add(scriptLine);
                 }
-                sb.append(mapHeader.getScript());
+                continue;
             }
-            return sb.toString();
+            boolean insertInNext = pos == scriptLines.getHeaderEndLine(header);
+            if (inPreamble || (insertInNext && header + 1 == numHeaders)) {
+                return null;
+            }
+            changed = true;
+            nextChanged |= insertInNext;
+            if (!lineChanges.isRemoved(change)) {
+                headerLines.add(scriptLine);
+            }
+            (insertInNext ? nextHeaderLines : headerLines).addAll(lineChanges.getAddedLines(change));
+            change++;
+        }
+
+        for (; header < numHeaders; header++) {
+            ParsedMapHeader parsed = parseHeader(header, headerLines, changed);
+            if (parsed == null) {
+                return null;
+            }
+            parsedHeaders.add(parsed);
+            headerLines = nextHeaderLines;
+            nextHeaderLines = new ArrayList<>();
+            changed = nextChanged;
+            nextChanged = false;
+        }
+        return parsedHeaders;
+    }
+
+    /**
+     * @return The header parsed from its modified lines, the original header if it has not changed, or null if its
+     * lines do not parse to a single header
+     */
+    private ParsedMapHeader parseHeader(int index, List<String> headerLines, boolean changed) {
+        if (!changed) {
+            return new ParsedMapHeader(mapHeaders.get(index));
+        }
+        // The parser skips three lines for the map name and IDs
+        String headerScript = "\n\n\n" + String.join("\n", headerLines) + "\n";
+        List<ParsedMapHeader> parsed;
+        try {
+            parsed = new ScriptParser(mapDatabase, headerScript).parse();
+        } catch (RuntimeException e) {
+            // Parsing the whole script will report the problem
+            return null;
+        }
+        return (parsed.size() == 1) ? parsed.getFirst() : null;
     }
 
     public String getModifiedScript(MapChanges mapChanges) {
         StringBuilder sb = new StringBuilder();
-        String[] scriptLines = getScript().split("\n");
+        for (Iterator<String> lines = new ModifiedScriptLines(mapChanges); lines.hasNext(); ) {
+            sb.append(lines.next()).append("\n");
+        }
+        return sb.toString();
+    }
 
-        for (int pos = 0; pos < scriptLines.length; pos++) {
-            List<String> lines = mapChanges.lineChangesAt(name, pos);
-            if (lines == null) {
-                sb.append(scriptLines[pos]).append("\n");
-            } else {
-                if (!lines.getFirst().equals("null")) {
-                    sb.append(scriptLines[pos]).append("\n");
+    // Index of the first change to apply, since lines added before the first line are never applied
+    private static int firstChangeInScript(MapChanges.LineChanges lineChanges) {
+        int change = 0;
+        while (lineChanges != null && change < lineChanges.size() && lineChanges.getPosition(change) < 0) {
+            change++;
+        }
+        return change;
+    }
+
+    /**
+     * The lines of {@link #getScript()}, without the line breaks. Headers are decompiled one at a time as their lines
+     * are needed and are not kept, so only about one header's lines are in memory at once.
+     */
+    private class ScriptLines implements Iterator<String> {
+        private final Deque<String> lines;
+        private final LineWriter writer;
+        private final int[] headerEndLines;
+        // The next header to write, where the number of headers is the end
+        private int nextHeader;
+        private int linesWritten;
+        // Blank lines are held back until a line with text follows, since getScript().split drops them at the end
+        private int blankLines;
+
+        private ScriptLines() {
+            lines = new ArrayDeque<>();
+            writer = new LineWriter(this::addLine);
+            headerEndLines = new int[mapHeaders.size()];
+        }
+
+        /**
+         * @return The line of a header's closing brace, which is known once a line of that header has been read
+         */
+        private int getHeaderEndLine(int header) {
+            return headerEndLines[header];
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (lines.isEmpty() && nextHeader <= mapHeaders.size()) {
+                try {
+                    // The map name and IDs are written with the first header, so every line read is in a header
+                    // whose closing brace is known
+                    if (nextHeader == 0) {
+                        appendPreamble(writer);
+                    }
+                    if (nextHeader < mapHeaders.size()) {
+                        if (nextHeader > 0) {
+                            writer.append("\n\n");
+                        }
+                        writeHeaderScript(writer, nextHeader);
+                        headerEndLines[nextHeader] = linesWritten;
+                    } else {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to decompile script for map " + name, e);
                 }
-                for (String line : lines) {
-                    if (!line.equals("null")) {
-                        sb.append(line).append("\n");
+                nextHeader++;
+            }
+            return !lines.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return lines.poll();
+        }
+
+        private void addLine(String line) {
+            linesWritten++;
+            if (line.isEmpty()) {
+                blankLines++;
+                return;
+            }
+            for (; blankLines > 0; blankLines--) {
+                lines.add("");
+            }
+            lines.add(line);
+        }
+    }
+
+    /**
+     * The lines of {@link #getModifiedScript}, made by going through the script's lines and the sorted changes together.
+     */
+    private class ModifiedScriptLines implements Iterator<String> {
+        private final ScriptLines scriptLines;
+        private final MapChanges.LineChanges lineChanges;
+        private final int numChanges;
+        private int change;
+        private int pos;
+        // Lines added after the last script line read that have not been returned yet
+        private Iterator<String> addedLines;
+        private String nextLine;
+
+        private ModifiedScriptLines(MapChanges mapChanges) {
+            scriptLines = new ScriptLines();
+            lineChanges = mapChanges.getLineChanges(name);
+            numChanges = (lineChanges == null) ? 0 : lineChanges.size();
+            change = firstChangeInScript(lineChanges);
+            addedLines = Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextLine == null) {
+                if (addedLines.hasNext()) {
+                    nextLine = addedLines.next();
+                } else if (scriptLines.hasNext()) {
+                    String line = scriptLines.next();
+                    if (change < numChanges && lineChanges.getPosition(change) == pos) {
+                        if (!lineChanges.isRemoved(change)) {
+                            nextLine = line;
+                        }
+                        addedLines = lineChanges.getAddedLines(change).iterator();
+                        change++;
+                    } else {
+                        nextLine = line;
                     }
+                    pos++;
+                } else {
+                    return false;
                 }
             }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = nextLine;
+            nextLine = null;
+            return line;
         }
-        return sb.toString();
     }
 
     @Override
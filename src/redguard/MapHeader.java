@@ -1,31 +1,54 @@
 package redguard;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class MapHeader {
+    public static final int LENGTH = 165;
+    public static final int ATTRIBUTES_LENGTH = 256;
+
+    private final MapDatabase mapDatabase;
+    private final MapRecords records;
+    private final int index;
+    private final int scriptPos;
     private final byte[] data;
     private final String name;
     private final int instances;
     private final int scriptLength;
     private final int scriptDataOffset;
     private final int scriptPC;
-    private final List<String> strings;
-    private final List<Integer> variables;
+    // Everything below is sliced out of the map records the first time it is needed
+    private List<String> strings;
+    private List<Integer> variables;
     private byte[] scriptBytes;
     private byte[] attributeBytes;
     private String script;
 
-    public MapHeader(byte[] data) {
-        this.data = data;
+    /**
+     * Create a header from the map's RAHD record. Only the fixed header data is read here. Strings, variables, script
+     * bytes, and attributes are read from their records on first access, and the script is decompiled on first access.
+     *
+     * @param mapDatabase The database used to decompile the script
+     * @param records     The records of the map file this header belongs to
+     * @param index       The index of this header in RAHD and RAAT
+     * @param scriptPos   The offset of this header's script in RASC
+     */
+    public MapHeader(MapDatabase mapDatabase, MapRecords records, int index, int scriptPos) {
+        this.mapDatabase = mapDatabase;
+        this.records = records;
+        this.index = index;
+        this.scriptPos = scriptPos;
+        data = records.getBytes("RAHD", 8 + index * LENGTH, LENGTH);
         name = new String(Arrays.copyOfRange(data, 4, 13)).trim();
         instances = Utils.byteRangeToInt(data, 13, 2, true);
         scriptLength = Utils.byteRangeToInt(data, 77, 4, true);
         scriptDataOffset = Utils.byteRangeToInt(data, 81, 4, true);
         scriptPC = Utils.byteRangeToInt(data, 85, 4, true);
-        strings = new ArrayList<>();
-        variables = new ArrayList<>();
     }
 
     public byte[] getData() {
@@ -53,55 +76,114 @@ public class MapHeader {
     }
 
     public List<String> getStrings() {
+        if (strings == null) {
+            strings = readStrings();
+        }
         return strings;
     }
 
-    public void initStrings(String allStrings, byte[] stringOffsets) {
+    private List<String> readStrings() {
+        List<String> list = new ArrayList<>();
         int numStrings = Utils.byteRangeToInt(data, 65, 4, true); // Number of strings in this header's script
         if (numStrings > 0) {
+            ByteBuffer allStrings = records.get("RAST");
+            ByteBuffer stringOffsets = records.get("RASB");
             int stringOffsetsIndex = Utils.byteRangeToInt(data, 73, 4, true); // Index for header in map's string offsets table
             for (int i = 0; i < numStrings; i++) {
-                int stringOffset = Utils.byteRangeToInt(stringOffsets, stringOffsetsIndex + i * 4, 4, true); // Use offset to find beginning of string
-                int stringEnd = allStrings.indexOf("\u0000", stringOffset); // String continues until 0 byte
-                String str = allStrings.substring(stringOffset, stringEnd);
-                strings.add(str);
+                int stringOffset = stringOffsets.getInt(stringOffsetsIndex + i * 4); // Use offset to find beginning of string
+                int stringEnd = stringOffset;
+                while (allStrings.get(stringEnd) != 0) { // String continues until 0 byte
+                    stringEnd++;
+                }
+                byte[] bytes = new byte[stringEnd - stringOffset];
+                allStrings.get(stringOffset, bytes);
+                list.add(new String(bytes, StandardCharsets.ISO_8859_1));
             }
         }
+        return list;
     }
 
     public List<Integer> getVariables() {
+        if (variables == null) {
+            variables = readVariables();
+        }
         return variables;
     }
 
-    public void initVariables(List<Integer> allVariables) {
+    private List<Integer> readVariables() {
+        List<Integer> list = new ArrayList<>();
         int numVariables = Utils.byteRangeToInt(data, 117, 4, true);
         if (numVariables > 0) {
+            ByteBuffer allVariables = records.get("RAVA");
             int variableOffset = Utils.byteRangeToInt(data, 125, 4, true) / 4;
-            variables.addAll(allVariables.subList(variableOffset, variableOffset + numVariables));
+            for (int i = 0; i < numVariables; i++) {
+                list.add(allVariables.getInt((variableOffset + i) * 4));
+            }
         }
+        return list;
     }
 
     public byte[] getScriptBytes() {
+        if (scriptBytes == null) {
+            scriptBytes = records.getBytes("RASC", scriptPos, scriptLength);
+        }
         return scriptBytes;
     }
 
-    public void setScriptBytes(byte[] scriptBytes) {
-        this.scriptBytes = scriptBytes;
-    }
-
     public byte[] getAttributeBytes() {
+        if (attributeBytes == null) {
+            attributeBytes = records.getBytes("RAAT", index * ATTRIBUTES_LENGTH, ATTRIBUTES_LENGTH);
+        }
         return attributeBytes;
     }
 
-    public void setAttributeBytes(byte[] attributeBytes) {
-        this.attributeBytes = attributeBytes;
+    /**
+     * Use a script that was decompiled earlier, so this header does not need to decompile it again.
+     *
+     * @param script The readable script text for this header
+     */
+    void setCachedScript(String script) {
+        this.script = script;
+    }
+
+    /**
+     * Read this header's script as values, which {@link ScriptWriter} can write back without going through text.
+     *
+     * @return The values of the script
+     * @throws IOException If the script ends in the middle of a value
+     */
+    public List<ScriptValue> getScriptValues() throws IOException {
+        return new ScriptReader(mapDatabase, this).readValues();
     }
 
+    /**
+     * Get the decompiled script for this header, decompiling it the first time it is requested.
+     *
+     * @return The readable script text for this header
+     */
     public String getScript() {
+        if (script == null) {
+            try {
+                script = new ScriptReader(mapDatabase, this).read();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to decompile script for header " + name, e);
+            }
+        }
         return script;
     }
 
-    public void setScript(String script) {
-        this.script = script;
+    /**
+     * Write the decompiled script for this header. If it has not been decompiled yet, it is decompiled straight into
+     * the writer and not kept, so writing many headers does not hold all of their scripts in memory.
+     *
+     * @param out Where to write the readable script
+     * @throws IOException If the script could not be decompiled or writing fails
+     */
+    public void writeScript(Appendable out) throws IOException {
+        if (script != null) {
+            out.append(script);
+        } else {
+            new ScriptReader(mapDatabase, this).read(out);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,21 @@
+package redguard;
+
+/**
+ * Location of a single record (section) inside an RGM file.
+ *
+ * @param name   The four character record name, such as RAHD or MPOB
+ * @param offset The file offset of the record's data, just past its name and length
+ * @param length The length of the record's data in bytes
+ */
+public record MapRecord(String name, int offset, int length) {
+    // Every record starts with a four byte name and a four byte big-endian length
+    public static final int HEADER_LENGTH = 8;
+
+    public int headerOffset() {
+        return offset - HEADER_LENGTH;
+    }
+
+    public int end() {
+        return offset + length;
+    }
+}
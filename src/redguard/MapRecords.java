@@ -0,0 +1,117 @@
+package redguard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped view of an RGM file. Reading only builds an index of record names to their offset and length, so the
+ * record data stays in the file mapping instead of being copied onto the heap.
+ */
+public class MapRecords {
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final Map<String, MapRecord> index;
+
+    public MapRecords(File fileToRead) throws IOException {
+        path = fileToRead.toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        index = new LinkedHashMap<>();
+
+        // Each record is a four character name, a big-endian length, then the data itself
+        int pos = 0;
+        byte[] nameBytes = new byte[4];
+        while (buffer.limit() - pos >= 4) {
+            buffer.get(pos, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.ISO_8859_1);
+            if (name.equals("END ")) {
+                break;
+            }
+            if (buffer.limit() - pos < MapRecord.HEADER_LENGTH) {
+                throw new IOException("Record " + name + " is cut off in map file: " + path);
+            }
+            int length = buffer.getInt(pos + 4);
+            int offset = pos + MapRecord.HEADER_LENGTH;
+            if (length < 0 || length > buffer.limit() - offset) {
+                throw new IOException("Record " + name + " extends past the end of map file: " + path);
+            }
+            index.put(name, new MapRecord(name, offset, length));
+            pos = offset + length;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean has(String name) {
+        return index.containsKey(name);
+    }
+
+    public MapRecord getRecord(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * @return All records in the order they appear in the file
+     */
+    public Collection<MapRecord> getRecords() {
+        return Collections.unmodifiableCollection(index.values());
+    }
+
+    /**
+     * Get a record's data as a read-only slice of the mapped file. Record data is little-endian, so the slice is
+     * ordered that way.
+     *
+     * @param name The record name
+     * @return A read-only buffer over the record's data, or null if the file has no such record
+     */
+    public ByteBuffer get(String name) {
+        MapRecord record = index.get(name);
+        if (record == null) {
+            return null;
+        }
+        return buffer.slice(record.offset(), record.length()).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Get a record including its name and length, as a read-only slice of the mapped file. This is the record exactly
+     * as it appears in the file, ready to be written to another map file.
+     *
+     * @param name The record name
+     * @return A read-only buffer over the whole record, or null if the file has no such record
+     */
+    public ByteBuffer getWithHeader(String name) {
+        MapRecord record = index.get(name);
+        if (record == null) {
+            return null;
+        }
+        return buffer.slice(record.headerOffset(), MapRecord.HEADER_LENGTH + record.length()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy part of a record onto the heap, for small pieces that need to be modified or kept as arrays.
+     *
+     * @param name   The record name
+     * @param start  Offset into the record's data
+     * @param length Number of bytes to copy
+     * @return A new array containing the bytes
+     */
+    public byte[] getBytes(String name, int start, int length) {
+        byte[] bytes = new byte[length];
+        get(name).get(start, bytes);
+        return bytes;
+    }
+}
@@ -1,19 +1,34 @@
 package redguard;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class ParsedMapHeader {
     private final String name;
     private int scriptDataOffset;
     private int scriptPC;
-    private final List<String> strings;
+    private final StringPool strings;
     private byte[] scriptBytes;
     private byte[] attributeBytes;
 
     public ParsedMapHeader(String name) {
         this.name = name;
-        strings = new ArrayList<>();
+        strings = new StringPool();
+    }
+
+    /**
+     * Create a parsed header that keeps a map header's original script, strings, and attributes as they are.
+     *
+     * @param header The header read from a map file
+     */
+    public ParsedMapHeader(MapHeader header) {
+        this(header.getName());
+        scriptPC = header.getScriptPC();
+        for (String str : header.getStrings()) {
+            // Script bytes refer to strings by index, so duplicates must stay
+            strings.append(str);
+        }
+        scriptBytes = header.getScriptBytes();
+        attributeBytes = header.getAttributeBytes();
     }
 
     public String getName() {
@@ -37,16 +52,11 @@ public class ParsedMapHeader {
     }
 
     public List<String> getStrings() {
-        return strings;
+        return strings.getStrings();
     }
 
     public int addString(String str) {
-        if (strings.contains(str)) {
-            return strings.indexOf(str);
-        } else {
-            strings.add(str);
-            return strings.size() - 1;
-        }
+        return strings.add(str);
     }
 
     public byte[] getScriptBytes() {
@@ -0,0 +1,96 @@
+package redguard;
+
+/**
+ * A field of the fixed-size entries in a map's placement records. Whole columns of a field are decoded at once by
+ * {@link PlacementTable}. Fields the format does not describe yet are left out, and are kept as they are when a table
+ * is written back.
+ */
+public enum PlacementColumn {
+    // MPOB - Objects, 66 bytes each
+    OBJECT_ID("MPOB", 0, 4),
+    OBJECT_TYPE("MPOB", 4, 1),
+    OBJECT_IS_ACTIVE("MPOB", 5, 1),
+    OBJECT_SCRIPT_NAME("MPOB", 6, 9, true),
+    OBJECT_MODEL_NAME("MPOB", 15, 9, true),
+    OBJECT_IS_STATIC("MPOB", 24, 1),
+    OBJECT_POS_X("MPOB", 27, 3),
+    OBJECT_POS_Y("MPOB", 31, 3),
+    OBJECT_POS_Z("MPOB", 35, 3),
+    OBJECT_ANGLE_X("MPOB", 39, 4),
+    OBJECT_ANGLE_Y("MPOB", 43, 4),
+    OBJECT_ANGLE_Z("MPOB", 47, 4),
+    OBJECT_TEXTURE("MPOB", 51, 2),
+    OBJECT_INTENSITY("MPOB", 53, 1),
+    OBJECT_RADIUS("MPOB", 54, 1),
+    OBJECT_MODEL_ID("MPOB", 55, 2),
+    OBJECT_WORLD_ID("MPOB", 57, 2),
+    OBJECT_RED("MPOB", 59, 2),
+    OBJECT_GREEN("MPOB", 61, 2),
+    OBJECT_BLUE("MPOB", 63, 2),
+
+    // MPSO - Statics, 66 bytes each, with rotation as a 3x3 fixed-point matrix in row order
+    STATIC_ID("MPSO", 0, 4),
+    STATIC_MODEL_NAME("MPSO", 4, 12, true),
+    STATIC_POS_X("MPSO", 16, 4),
+    STATIC_POS_Y("MPSO", 20, 4),
+    STATIC_POS_Z("MPSO", 24, 4),
+    STATIC_ROTATION_0("MPSO", 28, 4),
+    STATIC_ROTATION_1("MPSO", 32, 4),
+    STATIC_ROTATION_2("MPSO", 36, 4),
+    STATIC_ROTATION_3("MPSO", 40, 4),
+    STATIC_ROTATION_4("MPSO", 44, 4),
+    STATIC_ROTATION_5("MPSO", 48, 4),
+    STATIC_ROTATION_6("MPSO", 52, 4),
+    STATIC_ROTATION_7("MPSO", 56, 4),
+    STATIC_ROTATION_8("MPSO", 60, 4),
+
+    // MPSF - Flats, 18 bytes each
+    FLAT_ID("MPSF", 0, 4),
+    FLAT_POS_X("MPSF", 4, 4),
+    FLAT_POS_Y("MPSF", 8, 4),
+    FLAT_POS_Z("MPSF", 12, 4),
+    FLAT_TEXTURE("MPSF", 16, 2),
+
+    // MPMK - Markers, 12 bytes each
+    MARKER_POS_X("MPMK", 0, 4),
+    MARKER_POS_Y("MPMK", 4, 4),
+    MARKER_POS_Z("MPMK", 8, 4);
+
+    private final String recordName;
+    private final int offset;
+    private final int size;
+    private final boolean text;
+
+    PlacementColumn(String recordName, int offset, int size) {
+        this(recordName, offset, size, false);
+    }
+
+    PlacementColumn(String recordName, int offset, int size, boolean text) {
+        this.recordName = recordName;
+        this.offset = offset;
+        this.size = size;
+        this.text = text;
+    }
+
+    public String getRecordName() {
+        return recordName;
+    }
+
+    /**
+     * @return The offset of this field from the start of each entry
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return True if this field is a zero-padded name, false if it is a little-endian number
+     */
+    public boolean isText() {
+        return text;
+    }
+}
@@ -0,0 +1,189 @@
+package redguard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Column view of a placement record (MPOB, MPSO, MPSL, MPSF, or MPMK). These records are an entry count followed by
+ * fixed-size entries. Each column is decoded from the mapped record into a primitive array the first time it is
+ * requested, so a field can be read or changed for every entry without creating an object per entry.
+ * <p>
+ * Returned arrays are live: changes to them are written back by {@link #encode()}, which is what {@link MapFile}
+ * writes for tables that had columns decoded. Bytes outside the decoded columns are kept as they are.
+ */
+public class PlacementTable {
+    public static final String[] RECORD_NAMES = {"MPOB", "MPSO", "MPSL", "MPSF", "MPMK"};
+
+    private final String recordName;
+    private final ByteBuffer data;
+    private final int count;
+    private final int stride;
+    private final Map<PlacementColumn, int[]> intColumns;
+    private final Map<PlacementColumn, String[]> textColumns;
+
+    /**
+     * @param recordName The record name, one of {@link #RECORD_NAMES}
+     * @param data       The record's data, little-endian
+     * @throws IOException If the record's length does not match its entry count
+     */
+    public PlacementTable(String recordName, ByteBuffer data) throws IOException {
+        this.recordName = recordName;
+        this.data = data;
+        if (data.limit() < 4) {
+            throw new IOException("Record " + recordName + " is too short for an entry count");
+        }
+        count = data.getInt(0);
+        int entriesLength = data.limit() - 4;
+        int expectedStride = entryLength(recordName);
+        if (count < 0) {
+            throw new IOException("Record " + recordName + " has a negative entry count: " + count);
+        } else if (expectedStride > 0) {
+            stride = expectedStride;
+        } else if (count > 0) {
+            // MPSL's entries are not described yet, so their size comes from the record's length
+            stride = entriesLength / count;
+        } else {
+            stride = 0;
+        }
+        if ((long) count * stride != entriesLength) {
+            throw new IOException("Record " + recordName + " has " + entriesLength + " bytes of entries, which does not fit "
+                    + count + " entries of " + stride + " bytes");
+        }
+        intColumns = new EnumMap<>(PlacementColumn.class);
+        textColumns = new EnumMap<>(PlacementColumn.class);
+    }
+
+    private static int entryLength(String recordName) {
+        return switch (recordName) {
+            case "MPOB", "MPSO" -> 66;
+            case "MPSF" -> 18;
+            case "MPMK" -> 12;
+            default -> -1;
+        };
+    }
+
+    public String getRecordName() {
+        return recordName;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The length of each entry in bytes
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @param index The entry index
+     * @return A read-only view of one whole entry, including fields without a column
+     */
+    public ByteBuffer getEntry(int index) {
+        return data.slice(4 + index * stride, stride).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Get every entry's value of a number field, decoding the column on first access. Fields shorter than four bytes
+     * are unsigned.
+     *
+     * @param column A number column of this table's record
+     * @return The live column, with one value per entry
+     */
+    public int[] getInts(PlacementColumn column) {
+        checkColumn(column, false);
+        return intColumns.computeIfAbsent(column, c -> {
+            int[] values = new int[count];
+            for (int i = 0, pos = 4 + c.getOffset(); i < count; i++, pos += stride) {
+                values[i] = switch (c.getSize()) {
+                    case 1 -> data.get(pos) & 0xff;
+                    case 2 -> data.getShort(pos) & 0xffff;
+                    case 3 -> (data.get(pos) & 0xff) | (data.get(pos + 1) & 0xff) << 8 | (data.get(pos + 2) & 0xff) << 16;
+                    default -> data.getInt(pos);
+                };
+            }
+            return values;
+        });
+    }
+
+    /**
+     * Get every entry's value of a name field, decoding the column on first access.
+     *
+     * @param column A text column of this table's record
+     * @return The live column, with one name per entry, cut off at the first zero byte
+     */
+    public String[] getStrings(PlacementColumn column) {
+        checkColumn(column, true);
+        return textColumns.computeIfAbsent(column, c -> {
+            String[] values = new String[count];
+            for (int i = 0, pos = 4 + c.getOffset(); i < count; i++, pos += stride) {
+                values[i] = readText(pos, c.getSize());
+            }
+            return values;
+        });
+    }
+
+    private String readText(int pos, int size) {
+        byte[] bytes = new byte[size];
+        data.get(pos, bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private void checkColumn(PlacementColumn column, boolean text) {
+        if (!column.getRecordName().equals(recordName) || column.isText() != text) {
+            throw new IllegalArgumentException("Column " + column + " is not a " + (text ? "text" : "number")
+                    + " column of record " + recordName);
+        }
+    }
+
+    /**
+     * @return True if any column has been decoded, so it may have been changed
+     */
+    public boolean hasDecodedColumns() {
+        return !intColumns.isEmpty() || !textColumns.isEmpty();
+    }
+
+    /**
+     * Build the record's data from the original bytes with every decoded column written over them.
+     *
+     * @return The record's data, little-endian, ready to be written
+     */
+    public ByteBuffer encode() {
+        ByteBuffer out = ByteBuffer.allocate(data.limit()).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(data.duplicate().clear());
+        for (Map.Entry<PlacementColumn, int[]> entry : intColumns.entrySet()) {
+            PlacementColumn column = entry.getKey();
+            int[] values = entry.getValue();
+            for (int i = 0, pos = 4 + column.getOffset(); i < count; i++, pos += stride) {
+                for (int b = 0; b < column.getSize(); b++) {
+                    out.put(pos + b, (byte) (values[i] >>> (8 * b)));
+                }
+            }
+        }
+        for (Map.Entry<PlacementColumn, String[]> entry : textColumns.entrySet()) {
+            PlacementColumn column = entry.getKey();
+            String[] values = entry.getValue();
+            for (int i = 0, pos = 4 + column.getOffset(); i < count; i++, pos += stride) {
+                // Unchanged names keep whatever followed their zero byte
+                if (values[i].equals(readText(pos, column.getSize()))) {
+                    continue;
+                }
+                byte[] bytes = values[i].getBytes(StandardCharsets.ISO_8859_1);
+                for (int b = 0; b < column.getSize(); b++) {
+                    out.put(pos + b, b < bytes.length ? bytes[b] : 0);
+                }
+            }
+        }
+        return out.clear();
+    }
+}
@@ -0,0 +1,268 @@
+package redguard;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static modManager.RedguardModManager.logger;
+
+/**
+ * Index of where flags, functions, items, and dialogue labels are used in the scripts of every map, so usages can be
+ * found without opening each map. The index is saved to a file with a section for each map, tagged with the map's
+ * script cache key, and a map is only scanned again when its key changes.
+ */
+public class ReferenceIndex {
+    // Increase when the file format or what gets indexed changes, so that old index files are not used
+    private static final int VERSION = 1;
+
+    public enum Kind {
+        FLAG, FUNCTION, ITEM, DIALOGUE
+    }
+
+    /**
+     * @param name The flag, function, or item name, or the RTX label
+     * @param line The line in the map's decompiled script, starting from 0
+     */
+    public record Usage(Kind kind, String name, String map, String header, int line) {
+        @Override
+        public String toString() {
+            return map + " " + header + " line " + (line + 1) + ": " + name;
+        }
+    }
+
+    // Usages in one map, with the key the map had when it was scanned, or null if it should not be saved
+    private record MapEntry(String key, List<Usage> usages) {
+    }
+
+    private final Map<String, MapEntry> mapEntries;
+    private final Map<Kind, Map<String, List<Usage>>> usagesByName;
+
+    private ReferenceIndex(Map<String, MapEntry> mapEntries) {
+        this.mapEntries = mapEntries;
+        usagesByName = new EnumMap<>(Kind.class);
+        for (Kind kind : Kind.values()) {
+            usagesByName.put(kind, new HashMap<>());
+        }
+        for (MapEntry entry : mapEntries.values()) {
+            for (Usage usage : entry.usages()) {
+                usagesByName.get(usage.kind()).computeIfAbsent(usage.name(), _ -> new ArrayList<>()).add(usage);
+            }
+        }
+    }
+
+    /**
+     * Build the index for every map, reusing the saved index for maps that have not changed, and save it again if any
+     * map had to be scanned. Maps that cannot be read are left out with a warning.
+     *
+     * @param mapDatabase  The database with the maps to index
+     * @param sourceFolder The folder that map files are read from, which has the maps folder in it
+     * @param indexFile    The file the index is saved in
+     * @return The index
+     * @throws InterruptedException If interrupted while waiting for the maps
+     */
+    public static ReferenceIndex build(MapDatabase mapDatabase, Path sourceFolder, Path indexFile) throws InterruptedException {
+        Map<String, MapEntry> saved = load(indexFile);
+        ScriptCache scriptCache = mapDatabase.getScriptCache();
+        MapBatch.Result<MapEntry> result = MapBatch.run(mapDatabase.getMapFiles(), mapFile -> {
+            Path mapPath = sourceFolder.resolve(mapFile.getFullName());
+            // Without the script cache there is no key that covers the names used in scripts, so nothing is reused
+            String key = (scriptCache != null) ? scriptCache.getKey(mapPath) : null;
+            MapEntry entry = saved.get(mapFile.getName());
+            if (key != null && entry != null && key.equals(entry.key())) {
+                return entry;
+            }
+            return new MapEntry(key, scan(mapDatabase, mapFile.getName(), mapFile.readCopy(sourceFolder).getScript()));
+        });
+        for (MapBatch.Failure failure : result.getFailures()) {
+            logger.warning("Failed to index references in map " + failure);
+        }
+        logger.info("Built reference index: " + result);
+
+        ReferenceIndex index = new ReferenceIndex(result.getResults());
+        boolean changed = saved.size() != index.mapEntries.size();
+        for (Map.Entry<String, MapEntry> entry : index.mapEntries.entrySet()) {
+            changed |= entry.getValue() != saved.get(entry.getKey());
+        }
+        if (changed) {
+            index.save(indexFile);
+        }
+        return index;
+    }
+
+    /**
+     * Find the references in a map's decompiled script.
+     *
+     * @param mapName The map name
+     * @param script  The map's script, as from {@link MapFile#getScript()}
+     * @return The usages, in the order they appear in the script
+     */
+    public static List<Usage> scan(MapDatabase mapDatabase, String mapName, String script) {
+        SymbolTable symbolTable = mapDatabase.getSymbolTable();
+        Map<String, String> rtxEntries = mapDatabase.getRtxEntries();
+        ScriptLexer lexer = new ScriptLexer(script.lines().iterator(), symbolTable);
+        List<Usage> usages = new ArrayList<>();
+        // The first three lines are the map name and IDs
+        for (int i = 0; i < 3 && lexer.hasNextLine(); i++) {
+            lexer.skipLine();
+        }
+        String header = "";
+        while (lexer.hasNextLine()) {
+            List<ScriptToken> tokens;
+            try {
+                tokens = lexer.nextLine();
+            } catch (IllegalArgumentException e) {
+                // A line that cannot be read has nothing to index
+                continue;
+            }
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            String line = lexer.getLineText();
+            int lineNumber = lexer.getLineNumber();
+            ScriptToken first = tokens.getFirst();
+            if (first.column() == 0 && first.kind() == ScriptToken.Kind.WORD) {
+                // Variables and attributes come before a header, and anything else at the start of a line names one
+                if (!first.text().startsWith("var") && tokens.stream().noneMatch(token -> token.isSymbol("="))) {
+                    int nameEnd = 0;
+                    while (nameEnd < line.length() && !Character.isWhitespace(line.charAt(nameEnd))) {
+                        nameEnd++;
+                    }
+                    header = line.substring(0, nameEnd);
+                }
+                continue;
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                ScriptToken token = tokens.get(i);
+                Kind kind = null;
+                String name = token.text();
+                switch (token.kind()) {
+                    case WORD -> {
+                        if (i + 1 < tokens.size() && tokens.get(i + 1).isSymbol("(")
+                                && symbolTable.getFunctionIds().containsKey(name)) {
+                            kind = Kind.FUNCTION;
+                        } else if (symbolTable.getFlagIds().containsKey(name)) {
+                            kind = Kind.FLAG;
+                        }
+                    }
+                    case NUMBER -> {
+                        // Names in angle brackets are turned into numbers, and map names come before item names
+                        if (line.charAt(token.column()) == '<') {
+                            String bracketName = line.substring(token.column(), line.indexOf('>', token.column()) + 1);
+                            if (!symbolTable.getMapIds().containsKey(bracketName)
+                                    && symbolTable.getItemIds().containsKey(bracketName)) {
+                                kind = Kind.ITEM;
+                                name = bracketName.substring(1, bracketName.length() - 1);
+                            }
+                        }
+                    }
+                    case STRING -> {
+                        // Dialogue is written as the four characters of its RTX label
+                        if (name.length() == 4 && rtxEntries.containsKey(name)) {
+                            kind = Kind.DIALOGUE;
+                        }
+                    }
+                    default -> {
+                    }
+                }
+                if (kind != null) {
+                    usages.add(new Usage(kind, name, mapName, header, lineNumber));
+                }
+            }
+        }
+        return usages;
+    }
+
+    public List<Usage> getUsages(Kind kind, String name) {
+        return usagesByName.get(kind).getOrDefault(name, List.of());
+    }
+
+    public List<Usage> getUsages(SoupFlag flag) {
+        return getUsages(Kind.FLAG, flag.getName());
+    }
+
+    public List<Usage> getUsages(SoupFunction function) {
+        return getUsages(Kind.FUNCTION, function.getName());
+    }
+
+    public List<Usage> getUsages(Item item) {
+        return getUsages(Kind.ITEM, item.getName());
+    }
+
+    public List<Usage> getDialogueUsages(String label) {
+        return getUsages(Kind.DIALOGUE, label);
+    }
+
+    /**
+     * @param name A flag, function, or item name, or an RTX label
+     * @return The usages of anything with the name
+     */
+    public List<Usage> find(String name) {
+        List<Usage> usages = new ArrayList<>();
+        for (Kind kind : Kind.values()) {
+            usages.addAll(getUsages(kind, name));
+        }
+        return usages;
+    }
+
+    private static Map<String, MapEntry> load(Path indexFile) {
+        Map<String, MapEntry> entries = new HashMap<>();
+        if (!Files.exists(indexFile)) {
+            return entries;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            if (!("version " + VERSION).equals(reader.readLine())) {
+                return entries;
+            }
+            // Each map is its name, key, and number of usages on one line, followed by a line for each usage
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] split = line.split("\t");
+                String mapName = split[0];
+                int numUsages = Integer.parseInt(split[2]);
+                List<Usage> usages = new ArrayList<>(numUsages);
+                for (int i = 0; i < numUsages; i++) {
+                    String[] usage = reader.readLine().split("\t");
+                    usages.add(new Usage(Kind.valueOf(usage[0]), usage[1], mapName, usage[2], Integer.parseInt(usage[3])));
+                }
+                entries.put(mapName, new MapEntry(split[1], usages));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Ignoring unreadable reference index: " + e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Save the index, leaving out maps without a key. Failing to save only logs a warning, since the index can always
+     * be built again.
+     */
+    private void save(Path indexFile) {
+        Path tempPath = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                writer.write("version " + VERSION);
+                writer.write('\n');
+                for (Map.Entry<String, MapEntry> entry : mapEntries.entrySet()) {
+                    MapEntry mapEntry = entry.getValue();
+                    if (mapEntry.key() == null) {
+                        continue;
+                    }
+                    writer.write(entry.getKey() + "\t" + mapEntry.key() + "\t" + mapEntry.usages().size());
+                    writer.write('\n');
+                    for (Usage usage : mapEntry.usages()) {
+                        writer.write(usage.kind() + "\t" + usage.name() + "\t" + usage.header() + "\t" + usage.line());
+                        writer.write('\n');
+                    }
+                }
+            }
+            Files.move(tempPath, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Failed to save reference index: " + e);
+        }
+    }
+}
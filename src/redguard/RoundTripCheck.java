@@ -0,0 +1,200 @@
+package redguard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompiles every map's script, compiles it back, and writes the map again, checking that the written map is the same
+ * as the original byte for byte. Each step is timed, so this catches both codec mistakes and slowdowns across all maps.
+ * The values read from each header are also written straight back to bytes, without text in between, so a mistake can
+ * be told apart as one in reading and writing values or one in printing and parsing text. Every column of the placement
+ * records is decoded too, so they are encoded again when the map is written, and each table is checked on its own.
+ * Maps are read into separate map files, so maps that are already loaded are left alone.
+ */
+public class RoundTripCheck {
+    /**
+     * How one map went through the round trip.
+     *
+     * @param scriptBytes       The length of all of the map's header scripts
+     * @param mismatch          The first byte where the written map differs from the original, or -1 if they are the same
+     * @param valueMismatch     The first header whose values, written straight back, differ from its original script
+     *                          bytes, or null if every header's are the same
+     * @param placementMismatch The first placement record that differs from the original once its columns are decoded
+     *                          and encoded again, or null if every record is the same
+     * @param decompileNanos    Time spent decompiling the headers and building the map's script
+     * @param compileNanos      Time spent parsing the script back into headers
+     * @param writeNanos        Time spent writing the map file
+     */
+    public record MapResult(String name, long fileBytes, long scriptBytes, long mismatch, String valueMismatch,
+                            String placementMismatch, long decompileNanos, long compileNanos, long writeNanos) {
+        public boolean isIdentical() {
+            return mismatch < 0 && valueMismatch == null && placementMismatch == null;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + ((mismatch < 0) ? "identical" : "differs at byte " + mismatch)
+                    + ((valueMismatch == null) ? "" : ", values of " + valueMismatch + " differ")
+                    + ((placementMismatch == null) ? "" : ", encoded " + placementMismatch + " differs")
+                    + ", decompile " + formatMillis(decompileNanos) + ", compile " + formatMillis(compileNanos)
+                    + ", write " + formatMillis(writeNanos) + ", " + scriptBytes + " script bytes";
+        }
+    }
+
+    private final MapDatabase mapDatabase;
+    private final Path sourceFolder;
+
+    /**
+     * @param mapDatabase  The database with the maps to check
+     * @param sourceFolder The folder that map files are read from, which has the maps folder in it
+     */
+    public RoundTripCheck(MapDatabase mapDatabase, Path sourceFolder) {
+        this.mapDatabase = mapDatabase;
+        this.sourceFolder = sourceFolder;
+    }
+
+    /**
+     * Check every map in the database, working on several maps at once. The written maps go into a temporary folder,
+     * which is deleted afterward.
+     *
+     * @return The result of every map that finished, and the maps that could not be read, parsed, or written
+     * @throws IOException          If the temporary folder could not be created
+     * @throws InterruptedException If interrupted while waiting for the maps
+     */
+    public MapBatch.Result<MapResult> run() throws IOException, InterruptedException {
+        Path outputFolder = Files.createTempDirectory("roundtrip");
+        try {
+            return MapBatch.run(mapDatabase.getMapFiles(), mapFile -> check(mapFile, outputFolder));
+        } finally {
+            Files.deleteIfExists(outputFolder);
+        }
+    }
+
+    private MapResult check(MapFile mapFile, Path outputFolder) throws IOException {
+        MapFile copy = mapFile.readCopy(sourceFolder);
+        File source = sourceFolder.resolve(mapFile.getFullName()).toFile();
+
+        // Decompile every header even if the script cache has it, since the reader is what is being checked
+        long start = System.nanoTime();
+        long scriptBytes = 0;
+        List<List<ScriptValue>> headerValues = new ArrayList<>();
+        for (MapHeader header : copy.getMapHeaders()) {
+            List<ScriptValue> values = header.getScriptValues();
+            headerValues.add(values);
+            header.setCachedScript(new ScriptPrinter(mapDatabase, header).print(values));
+            scriptBytes += header.getScriptLength();
+        }
+        String script = copy.getScript();
+        long decompiled = System.nanoTime();
+
+        // Writing the values straight back checks the reader and writer without the printer and parser in between
+        String valueMismatch = null;
+        ScriptWriter writer = new ScriptWriter();
+        for (int i = 0; i < headerValues.size() && valueMismatch == null; i++) {
+            MapHeader header = copy.getMapHeaders().get(i);
+            if (!Arrays.equals(writer.write(headerValues.get(i)), header.getScriptBytes())) {
+                valueMismatch = header.getName();
+            }
+        }
+        String placementMismatch = checkPlacements(copy);
+        long compileStart = System.nanoTime();
+        List<ParsedMapHeader> parsedHeaders = new ScriptParser(mapDatabase, script).parse();
+        long compiled = System.nanoTime();
+        Path target = outputFolder.resolve(mapFile.getName() + ".RGM");
+        try {
+            copy.writeMap(target.toFile(), parsedHeaders);
+            long written = System.nanoTime();
+            return new MapResult(mapFile.getName(), source.length(), scriptBytes, Files.mismatch(source.toPath(), target),
+                    valueMismatch, placementMismatch, decompiled - start, compiled - compileStart, written - compiled);
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    /**
+     * Decode every column of the map's placement records and check that encoding them gives back the original entries.
+     * The decoded tables stay on the map file, so writing the map afterward goes through the encoder as well.
+     *
+     * @return The first record that differs, or null if they are all the same
+     */
+    private static String checkPlacements(MapFile mapFile) throws IOException {
+        for (String recordName : PlacementTable.RECORD_NAMES) {
+            PlacementTable table = mapFile.getPlacements(recordName);
+            if (table == null) {
+                continue;
+            }
+            for (PlacementColumn column : PlacementColumn.values()) {
+                if (!column.getRecordName().equals(recordName)) {
+                    continue;
+                }
+                if (column.isText()) {
+                    table.getStrings(column);
+                } else {
+                    table.getInts(column);
+                }
+            }
+            ByteBuffer data = table.encode();
+            if (data.getInt(0) != table.size()) {
+                return recordName;
+            }
+            for (int i = 0; i < table.size(); i++) {
+                if (!data.slice(4 + i * table.getStride(), table.getStride()).equals(table.getEntry(i))) {
+                    return recordName;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param result The result of {@link #run()}
+     * @return A readable report with a line for every map, followed by the maps that failed and the overall throughput
+     */
+    public static String report(MapBatch.Result<MapResult> result) {
+        Map<String, MapResult> results = result.getResults();
+        StringBuilder sb = new StringBuilder();
+        long identical = results.values().stream().filter(MapResult::isIdentical).count();
+        sb.append("Round trip of ").append(results.size() + result.getFailures().size()).append(" maps: ")
+                .append(identical).append(" identical, ").append(results.size() - identical).append(" different, ")
+                .append(result.getFailures().size()).append(" failed in ")
+                .append(formatMillis(result.getElapsedNanos())).append("\n");
+        long fileBytes = 0, scriptBytes = 0, decompileNanos = 0, compileNanos = 0, writeNanos = 0;
+        for (MapResult mapResult : results.values()) {
+            sb.append(mapResult).append("\n");
+            fileBytes += mapResult.fileBytes();
+            scriptBytes += mapResult.scriptBytes();
+            decompileNanos += mapResult.decompileNanos();
+            compileNanos += mapResult.compileNanos();
+            writeNanos += mapResult.writeNanos();
+        }
+        for (MapBatch.Failure failure : result.getFailures()) {
+            sb.append(failure).append("\n");
+        }
+        // Times are summed over all threads, so throughput is per thread
+        sb.append("Decompiled ").append(scriptBytes).append(" script bytes in ").append(formatMillis(decompileNanos))
+                .append(" (").append(formatThroughput(scriptBytes, decompileNanos)).append("), compiled in ")
+                .append(formatMillis(compileNanos)).append(" (").append(formatThroughput(scriptBytes, compileNanos))
+                .append("), wrote ").append(fileBytes).append(" map bytes in ").append(formatMillis(writeNanos))
+                .append(" (").append(formatThroughput(fileBytes, writeNanos)).append(")");
+        return sb.toString();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.1f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String formatThroughput(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return "- MB/s";
+        }
+        return String.format("%.1f MB/s", bytes / (1024.0 * 1024.0) / (nanos / (double) TimeUnit.SECONDS.toNanos(1)));
+    }
+}
@@ -0,0 +1,130 @@
+package redguard;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static modManager.RedguardModManager.logger;
+
+/**
+ * On-disk cache of decompiled header scripts, with one file per map. Each file is tagged with a key made from the map
+ * file's content hash and the hashes of the game files that decompiling depends on, and cached scripts are only used
+ * when that key matches. Changing a map or any of those game files means the map is decompiled again.
+ */
+public class ScriptCache {
+    // Increase when ScriptReader's output changes, so that scripts decompiled the old way are not used
+    private static final int VERSION = 1;
+
+    private final Path folder;
+    private final String databaseKey;
+
+    /**
+     * @param folder       The folder to keep cached scripts in, created if it does not exist
+     * @param dependencies The game files that change how maps are decompiled, such as SOUP386.DEF and ITEM.INI
+     * @throws IOException If the folder could not be created or a dependency could not be hashed
+     */
+    public ScriptCache(Path folder, Path... dependencies) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+        String[] parts = new String[dependencies.length + 1];
+        parts[0] = "version " + VERSION;
+        for (int i = 0; i < dependencies.length; i++) {
+            parts[i + 1] = Utils.hashFile(dependencies[i]);
+        }
+        databaseKey = Utils.hashStrings(parts);
+    }
+
+    /**
+     * @param mapPath The map file
+     * @return The key that the map's cached scripts must have to be used
+     */
+    public String getKey(Path mapPath) throws IOException {
+        return Utils.hashStrings(databaseKey, Utils.hashFile(mapPath));
+    }
+
+    /**
+     * Load a map's cached header scripts.
+     *
+     * @param mapName The map name
+     * @param key     The key from {@link #getKey(Path)}
+     * @return The header scripts in order, or null if none are cached for this key
+     */
+    public List<String> load(String mapName, String key) {
+        Path path = getPath(mapName);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            if (!key.equals(reader.readLine())) {
+                return null;
+            }
+            // Each script is its length in characters on one line, followed by the script itself and a line break
+            int numScripts = Integer.parseInt(reader.readLine());
+            List<String> scripts = new ArrayList<>(numScripts);
+            for (int i = 0; i < numScripts; i++) {
+                char[] script = new char[Integer.parseInt(reader.readLine())];
+                int read = 0;
+                while (read < script.length) {
+                    int n = reader.read(script, read, script.length - read);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    read += n;
+                }
+                scripts.add(new String(script));
+                reader.readLine();
+            }
+            return scripts;
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Ignoring unreadable cached scripts for map " + mapName + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a map's header scripts, replacing any that were cached for it before. Failing to store only logs a warning,
+     * since the scripts can always be decompiled again.
+     *
+     * @param mapName The map name
+     * @param key     The key from {@link #getKey(Path)}
+     * @param scripts The header scripts in order
+     */
+    public void store(String mapName, String key, List<String> scripts) {
+        Path path = getPath(mapName);
+        Path tempPath = null;
+        try {
+            // Each store gets its own temp file, since the same map can be stored from several threads at once
+            tempPath = Files.createTempFile(folder, mapName, ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                writer.write(key);
+                writer.write('\n');
+                writer.write(String.valueOf(scripts.size()));
+                writer.write('\n');
+                for (String script : scripts) {
+                    writer.write(String.valueOf(script.length()));
+                    writer.write('\n');
+                    writer.write(script);
+                    writer.write('\n');
+                }
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Failed to cache scripts for map " + mapName + ": " + e);
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException deleteException) {
+                    logger.warning("Failed to delete temp file: " + tempPath);
+                }
+            }
+        }
+    }
+
+    private Path getPath(String mapName) {
+        return folder.resolve(mapName + ".txt");
+    }
+}
@@ -0,0 +1,142 @@
+package redguard;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Exports the scripts of every map to a folder of text files and compiles a folder of edited scripts back into map
+ * files, working on several maps at once. A map's script is either one file named after the map, or a folder named
+ * after the map with one file for each header, numbered in header order.
+ */
+public class ScriptFolder {
+    private static final String EXTENSION = ".txt";
+
+    /**
+     * Decompile every map into the script folder, replacing any scripts already there, including a map's scripts from
+     * an export in the other mode.
+     *
+     * @param mapDatabase  The database with the maps to export
+     * @param sourceFolder The folder that map files are read from, which has the maps folder in it
+     * @param scriptFolder The folder to write scripts to
+     * @param perHeader    Whether to write a folder of header files for each map instead of a single file
+     * @return The file or folder written for each map, and the maps that could not be exported
+     * @throws InterruptedException If interrupted while waiting for the maps
+     */
+    public static MapBatch.Result<Path> exportScripts(MapDatabase mapDatabase, Path sourceFolder, Path scriptFolder,
+                                                      boolean perHeader) throws InterruptedException {
+        return MapBatch.run(mapDatabase.getMapFiles(), mapFile -> {
+            MapFile copy = mapFile.readCopy(sourceFolder);
+            Files.createDirectories(scriptFolder);
+            Path path = scriptFolder.resolve(mapFile.getName() + EXTENSION);
+            Path folder = scriptFolder.resolve(mapFile.getName());
+            if (!perHeader) {
+                // Remove header files from an earlier export, which would be left over from the other mode
+                deleteScriptFolder(folder);
+                try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                    copy.writeScript(writer);
+                }
+                return path;
+            }
+
+            // A single file from an earlier export has to go, since the import does not know which one to use
+            Files.deleteIfExists(path);
+            Files.createDirectories(folder);
+            // Remove header files from an earlier export, since the import would pick them up
+            for (Path oldPath : listScripts(folder)) {
+                Files.delete(oldPath);
+            }
+            List<MapHeader> headers = copy.getMapHeaders();
+            for (int i = 0; i < headers.size(); i++) {
+                String filename = String.format("%03d %s", i, Utils.validFilename(headers.get(i).getName())) + EXTENSION;
+                try (BufferedWriter writer = Files.newBufferedWriter(folder.resolve(filename), StandardCharsets.UTF_8)) {
+                    copy.writeHeaderScript(writer, i);
+                }
+            }
+            return folder;
+        });
+    }
+
+    /**
+     * Compile the scripts in the script folder into map files. Only maps that have a script file or folder are
+     * compiled, and everything but the script comes from the original map. A map with both a script file and header
+     * files fails, since it is not clear which of them was edited.
+     *
+     * @param mapDatabase  The database with the maps to import
+     * @param sourceFolder The folder that original map files are read from, which has the maps folder in it
+     * @param scriptFolder The folder with the scripts, as written by {@link #exportScripts}
+     * @param mapFolder    The folder to write map files to, which cannot be the maps folder they are read from, since a
+     *                     map cannot be written over the file it was read from
+     * @return The map file written for each map, and the maps that could not be read or compiled
+     * @throws InterruptedException If interrupted while waiting for the maps
+     */
+    public static MapBatch.Result<Path> importScripts(MapDatabase mapDatabase, Path sourceFolder, Path scriptFolder,
+                                                      Path mapFolder) throws InterruptedException {
+        List<MapFile> mapFiles = new ArrayList<>();
+        for (MapFile mapFile : mapDatabase.getMapFiles()) {
+            if (Files.isRegularFile(scriptFolder.resolve(mapFile.getName() + EXTENSION))
+                    || Files.isDirectory(scriptFolder.resolve(mapFile.getName()))) {
+                mapFiles.add(mapFile);
+            }
+        }
+        return MapBatch.run(mapFiles, mapFile -> {
+            String script = readScript(scriptFolder, mapFile.getName());
+            MapFile copy = mapFile.readCopy(sourceFolder);
+            Files.createDirectories(mapFolder);
+            Path path = mapFolder.resolve(mapFile.getName() + ".RGM");
+            copy.writeMap(path.toFile(), script);
+            return path;
+        });
+    }
+
+    // The whole script of a map, joining its header files if it has a folder
+    private static String readScript(Path scriptFolder, String mapName) throws IOException {
+        Path path = scriptFolder.resolve(mapName + EXTENSION);
+        Path folder = scriptFolder.resolve(mapName);
+        if (Files.isRegularFile(path) && Files.isDirectory(folder) && !listScripts(folder).isEmpty()) {
+            throw new IOException("Both " + path.getFileName() + " and the " + mapName
+                    + " folder have scripts, so it is not clear which to compile");
+        }
+        if (Files.isRegularFile(path)) {
+            return Files.readString(path, StandardCharsets.UTF_8);
+        }
+        // The parser skips the map name and IDs, so they are left blank
+        StringBuilder script = new StringBuilder("\n\n\n");
+        List<Path> headerPaths = listScripts(folder);
+        for (int i = 0; i < headerPaths.size(); i++) {
+            if (i > 0) {
+                script.append("\n\n");
+            }
+            script.append(Files.readString(headerPaths.get(i), StandardCharsets.UTF_8).stripTrailing());
+        }
+        return script.toString();
+    }
+
+    // Delete the header files in a map's folder, and the folder too if nothing else is in it
+    private static void deleteScriptFolder(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        for (Path oldPath : listScripts(folder)) {
+            Files.delete(oldPath);
+        }
+        try (Stream<Path> paths = Files.list(folder)) {
+            if (paths.findAny().isEmpty()) {
+                Files.delete(folder);
+            }
+        }
+    }
+
+    // Script files in a folder, sorted so that numbered header files are in header order
+    private static List<Path> listScripts(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.list(folder)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(EXTENSION)).sorted().toList();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package redguard;
 
+import java.io.IOException;
+
 public class ScriptInstruction {
     public static final String INDENT = "  ";
 
@@ -39,7 +41,15 @@ public class ScriptInstruction {
         this.comment = comment;
     }
 
-    public void build(StringBuilder sb, int previousIndentLevel, boolean addLabel) {
+    /**
+     * Write this instruction's lines, with the braces that open or close blocks between it and the previous one.
+     *
+     * @param sb                  Where to write the lines
+     * @param previousIndentLevel The indent level of the previous instruction
+     * @param addLabel            Whether to write this instruction's label in front of it
+     * @throws IOException If writing fails
+     */
+    public void build(Appendable sb, int previousIndentLevel, boolean addLabel) throws IOException {
         if (indentLevel > previousIndentLevel) {
             indent(sb, previousIndentLevel);
             sb.append("{\n");
@@ -64,7 +74,7 @@ public class ScriptInstruction {
         sb.append("\n");
     }
 
-    private void indent(StringBuilder sb, int previousIndentLevel) {
+    private void indent(Appendable sb, int previousIndentLevel) throws IOException {
         sb.append(INDENT.repeat(previousIndentLevel));
     }
 
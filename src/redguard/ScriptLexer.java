@@ -0,0 +1,186 @@
+package redguard;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a readable script into tokens one line at a time, in a single pass over each line. Comments are dropped, and
+ * map and item names in angle brackets are turned into their ids, so the parser only sees what it compiles.
+ */
+public class ScriptLexer {
+    // Characters that end a word, other than whitespace
+    private static final String SYMBOL_CHARS = "(),.@{}=!<>+-*/&|^\"";
+    private static final String[] TWO_CHAR_SYMBOLS = {"!=", "<=", ">=", "<<", ">>", "++", "--"};
+
+    private final Iterator<String> lines;
+    private final SymbolTable symbolTable;
+    private String lineText;
+    private int lineNumber;
+
+    public ScriptLexer(Iterator<String> lines, SymbolTable symbolTable) {
+        this.lines = lines;
+        this.symbolTable = symbolTable;
+        lineNumber = -1;
+    }
+
+    public boolean hasNextLine() {
+        return lines.hasNext();
+    }
+
+    /**
+     * Move past the next line without reading its tokens.
+     */
+    public void skipLine() {
+        lineText = lines.next();
+        lineNumber++;
+    }
+
+    /**
+     * Read the tokens of the next line.
+     *
+     * @return The tokens, which are empty for a blank or comment-only line
+     * @throws NoSuchElementException   If there are no more lines
+     * @throws IllegalArgumentException If the line has a character or string that cannot be read
+     */
+    public List<ScriptToken> nextLine() {
+        skipLine();
+        List<ScriptToken> tokens = new ArrayList<>();
+        String line = lineText;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '/' && i + 1 < length && line.charAt(i + 1) == '/') {
+                // Comment for the rest of the line
+                break;
+            } else if (c == '"') {
+                int end = line.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw error("Unterminated string", i);
+                }
+                tokens.add(new ScriptToken(ScriptToken.Kind.STRING, line.substring(i + 1, end), lineNumber, i));
+                i = end + 1;
+            } else if (c == '#') {
+                int end = i + 1;
+                while (end < length && Character.digit(line.charAt(end), 16) >= 0) {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw error("Label has no number", i);
+                }
+                if (end < length && line.charAt(end) == ':') {
+                    end++;
+                }
+                tokens.add(new ScriptToken(ScriptToken.Kind.LABEL, line.substring(i, end), lineNumber, i));
+                i = end;
+            } else if (c == '<' && readBracketName(tokens, i)) {
+                i = line.indexOf('>', i) + 1;
+            } else if (isDigit(line, i) || c == '-' && isDigit(line, i + 1) && isValueStart(tokens)) {
+                i = readWord(tokens, i, true);
+            } else if (SYMBOL_CHARS.indexOf(c) < 0) {
+                i = readWord(tokens, i, false);
+            } else {
+                i = readSymbol(tokens, i);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return The text of the line that was last read or skipped, including any comment
+     */
+    public String getLineText() {
+        return lineText;
+    }
+
+    /**
+     * @return The number of the line that was last read or skipped, starting from 0
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    private static boolean isDigit(String line, int index) {
+        return index < line.length() && line.charAt(index) >= '0' && line.charAt(index) <= '9';
+    }
+
+    // A minus sign is part of a number if there is no value before it to subtract from
+    private static boolean isValueStart(List<ScriptToken> tokens) {
+        if (tokens.isEmpty()) {
+            return true;
+        }
+        ScriptToken previous = tokens.getLast();
+        return previous.kind() == ScriptToken.Kind.SYMBOL && !previous.text().equals(")");
+    }
+
+    // Names in angle brackets, which are map and item names or special engine values
+    private boolean readBracketName(List<ScriptToken> tokens, int start) {
+        int end = start + 1;
+        while (end < lineText.length() && isBracketNameChar(lineText.charAt(end))) {
+            end++;
+        }
+        if (end == start + 1 || end >= lineText.length() || lineText.charAt(end) != '>') {
+            return false;
+        }
+        String name = lineText.substring(start, end + 1);
+        Integer id = symbolTable.getMapIds().get(name);
+        if (id == null) {
+            id = symbolTable.getItemIds().get(name);
+        }
+        if (id != null) {
+            tokens.add(new ScriptToken(ScriptToken.Kind.NUMBER, String.valueOf(id), lineNumber, start));
+            return true;
+        }
+        String inner = name.substring(1, name.length() - 1);
+        if (inner.equals("ScriptRv") || inner.equals("Anchor") || inner.startsWith("TaskPause(")) {
+            tokens.add(new ScriptToken(ScriptToken.Kind.SPECIAL, inner, lineNumber, start));
+            return true;
+        }
+        // Not a name, so this is a comparison or shift
+        return false;
+    }
+
+    private static boolean isBracketNameChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == ' ' || c == '(' || c == ')' || c == '\'' || c == '#';
+    }
+
+    private int readWord(List<ScriptToken> tokens, int start, boolean number) {
+        int end = start + 1;
+        boolean digits = true;
+        while (end < lineText.length()) {
+            char c = lineText.charAt(end);
+            if (Character.isWhitespace(c) || SYMBOL_CHARS.indexOf(c) >= 0) {
+                break;
+            }
+            digits &= c >= '0' && c <= '9';
+            end++;
+        }
+        ScriptToken.Kind kind = number && digits ? ScriptToken.Kind.NUMBER : ScriptToken.Kind.WORD;
+        tokens.add(new ScriptToken(kind, lineText.substring(start, end), lineNumber, start));
+        return end;
+    }
+
+    private int readSymbol(List<ScriptToken> tokens, int start) {
+        for (String symbol : TWO_CHAR_SYMBOLS) {
+            if (lineText.startsWith(symbol, start)) {
+                tokens.add(new ScriptToken(ScriptToken.Kind.SYMBOL, symbol, lineNumber, start));
+                return start + 2;
+            }
+        }
+        char c = lineText.charAt(start);
+        if (c == '!' || c == '"') {
+            throw error("Unexpected character '" + c + "'", start);
+        }
+        tokens.add(new ScriptToken(ScriptToken.Kind.SYMBOL, String.valueOf(c), lineNumber, start));
+        return start + 1;
+    }
+
+    private IllegalArgumentException error(String message, int column) {
+        return new IllegalArgumentException(message + " at line " + (lineNumber + 1) + ", column " + (column + 1));
+    }
+}
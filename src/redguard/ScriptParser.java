@@ -1,10 +1,8 @@
 package redguard;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import redguard.ScriptValue.*;
+
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ScriptParser {
     // Used to determine how to use incoming values in parseValue
@@ -60,60 +58,42 @@ public class ScriptParser {
         DIALOGUE_FUNCTIONS.add("TorchActivate");
     }
 
-    // Maps to look up ids for various names that ScriptReader introduced
-    private static final Map<String, Integer> mapIds = new HashMap<>();
-    private static final Map<String, Integer> functionIds = new HashMap<>();
-    private static final Map<String, Integer> flagIds = new HashMap<>();
-    private static final Map<String, Integer> itemIds = new HashMap<>();
-    private static final Map<String, Integer> references = new HashMap<>();
-    private static final Map<String, Integer> attributes = new HashMap<>();
-
     private final MapDatabase mapDatabase;
-    private Scanner scanner;
+    // Maps to look up ids for various names that ScriptReader introduced, shared with other parsers
+    private final Map<String, Integer> functionIds;
+    private final Map<String, Integer> flagIds;
+    private final Map<String, Integer> references;
+    private final Map<String, Integer> attributes;
+    private final ScriptLexer lexer;
+    // Tokens of the line being parsed, and the next one to use
+    private List<ScriptToken> tokens;
+    private int tokenIndex;
     private final List<ParsedMapHeader> parsedHeaders;
     private ParsedMapHeader currentHeader;
-    private final List<Byte> currentScriptBytes;
-    private final Map<Integer, List<Integer>> labels;
-    private int pos;
+    private final ScriptWriter writer;
     private String currentTask;
     private int totalScriptLength;
 
     public ScriptParser(MapDatabase mapDatabase, String script) {
-        // Initialize reverse maps for fast lookup
+        this(mapDatabase, script.lines().iterator());
+    }
+
+    /**
+     * @param mapDatabase The map database with the names used by the script
+     * @param lines       The lines of the script, read as they are needed
+     */
+    public ScriptParser(MapDatabase mapDatabase, Iterator<String> lines) {
         this.mapDatabase = mapDatabase;
-        initReverseMaps();
+        SymbolTable symbolTable = mapDatabase.getSymbolTable();
+        functionIds = symbolTable.getFunctionIds();
+        flagIds = symbolTable.getFlagIds();
+        references = symbolTable.getReferences();
+        attributes = symbolTable.getAttributes();
+        lexer = new ScriptLexer(lines, symbolTable);
+        tokens = List.of();
 
         parsedHeaders = new ArrayList<>();
-        currentScriptBytes = new ArrayList<>();
-        labels = new HashMap<>();
-        preParse(script);
-    }
-
-    private void initReverseMaps() {
-        // Map files, include angle brackets
-        for (MapFile mapFile : mapDatabase.getMapFiles()) {
-            mapIds.put("<" + mapFile.getName() + ">", mapFile.getIDs().getFirst());
-        }
-        // Functions
-        for (int i = 0; i < mapDatabase.getFunctions().size(); i++) {
-            functionIds.put(mapDatabase.getFunctions().get(i).getName(), i);
-        }
-        // Flags
-        for (int i = 0; i < mapDatabase.getFlags().size(); i++) {
-            flagIds.put(mapDatabase.getFlags().get(i).getName(), i);
-        }
-        // Items, include angle brackets
-        for (int i = 0; i < mapDatabase.getItems().size(); i++) {
-            itemIds.put("<" + mapDatabase.getItems().get(i).getName() + ">", i);
-        }
-        // References
-        for (int i = 0; i < mapDatabase.getReferences().size(); i++) {
-            references.put(mapDatabase.getReferences().get(i), i);
-        }
-        // Attributes
-        for (int i = 0; i < mapDatabase.getAttributes().size(); i++) {
-            attributes.put(mapDatabase.getAttributes().get(i), i);
-        }
+        writer = new ScriptWriter();
     }
 
     public int getTotalScriptLength() {
@@ -121,380 +101,423 @@ public class ScriptParser {
     }
 
     /**
-     * Go through the script and remove comma spacing and comments, add spaces before unary operators,
-     * and convert names into ids. This simplifies the main parsing task.
-     *
-     * @param script The script to pre-parse
+     * @return The number of the line that was last read, starting from 0, which is where parsing stopped if it failed
      */
-    private void preParse(String script) {
-        script = script.replaceAll(", +", ","); // Remove commas after spaces
-        script = script.replaceAll(" +//.*", ""); // Remove comments
-        script = script.replaceAll("(\\+\\+|--)", " $1"); // Add a space before unary operators
-
-        // Convert map and item names to their ids
-        Pattern p = Pattern.compile("<[a-zA-Z0-9 ()']+>");
-        Matcher m = p.matcher(script);
-        StringBuilder sb = new StringBuilder();
-        while (m.find()) {
-            if (mapIds.containsKey(m.group())) {
-                m.appendReplacement(sb, String.valueOf(mapIds.get(m.group())));
-            } else if (itemIds.containsKey(m.group())) {
-                m.appendReplacement(sb, String.valueOf(itemIds.get(m.group())));
-            }
-        }
-        m.appendTail(sb);
-        scanner = new Scanner(sb.toString());
+    public int getLineNumber() {
+        return lexer.getLineNumber();
     }
 
     /**
      * The main parsing method. Steps through the script and starts the recursive script parser for each map header.
      *
      * @return A list of parsed map headers
+     * @throws IllegalArgumentException If the script has a syntax error, with the line and column where it was found
      */
     public List<ParsedMapHeader> parse() {
         for (int i = 0; i < 3; i++) {
-            scanner.nextLine();
+            lexer.skipLine();
         }
         byte[] attributeBytes = new byte[256];
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine().trim();
-            if (!line.isEmpty() && !line.startsWith("var")) {
-                if (line.contains("=")) {
-                    // Attributes
-                    String[] split = line.split(" *= *");
-                    int index = attributes.get(split[0]);
-                    attributeBytes[index] = Byte.parseByte(split[1]);
-                } else {
-                    String[] split = line.split(" +"); // Split to check for (Execution starts...
-                    currentHeader = new ParsedMapHeader(split[0]);
-                    currentHeader.setAttributeBytes(attributeBytes);
-                    attributeBytes = new byte[256];
-                    parsedHeaders.add(currentHeader);
-                    // If split is this long, it has an (Execution starts...
-                    if (split.length >= 5) {
-                        int label = parseLabel(split[4].substring(0, split[4].length() - 1), false, false);
-                        currentHeader.setScriptPC(label);
-                    }
-                    // Start the recursive script parser for this header
-                    parseBlock();
-
-                    // Fill in empty labels with the position of the label marker
-                    for (int label : labels.keySet()) {
-                        List<Integer> labelPositions = labels.get(label);
-                        byte[] array = Utils.shortToByteArray(labelPositions.getFirst().shortValue(), true);
-                        for (int i = 1; i < labelPositions.size(); i++) {
-                            int position = labelPositions.get(i);
-                            currentScriptBytes.set(position, array[0]);
-                            currentScriptBytes.set(position + 1, array[1]);
-                        }
-                    }
-
-                    // Copy script byte list into a byte array
-                    byte[] scriptBytesArray = new byte[currentScriptBytes.size()];
-                    for (int i = 0; i < currentScriptBytes.size(); i++) {
-                        scriptBytesArray[i] = currentScriptBytes.get(i);
+        while (lexer.hasNextLine()) {
+            readLine();
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            ScriptToken first = tokens.getFirst();
+            if (first.kind() == ScriptToken.Kind.WORD && first.text().startsWith("var")) {
+                continue;
+            }
+            ScriptToken equals = findSymbol("=");
+            if (equals != null) {
+                // Attributes
+                String name = lexer.getLineText().substring(first.column(), equals.column()).trim();
+                Integer index = attributes.get(name);
+                if (index == null) {
+                    throw error("Unknown attribute " + name + " at", first);
+                }
+                tokenIndex = tokens.indexOf(equals) + 1;
+                attributeBytes[index] = Byte.parseByte(expect(ScriptToken.Kind.NUMBER).text());
+            } else {
+                // The header name is everything up to the first space, since it does not have to be a single token
+                String line = lexer.getLineText();
+                int nameEnd = first.column();
+                while (nameEnd < line.length() && !Character.isWhitespace(line.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                currentHeader = new ParsedMapHeader(line.substring(first.column(), nameEnd));
+                currentHeader.setAttributeBytes(attributeBytes);
+                attributeBytes = new byte[256];
+                parsedHeaders.add(currentHeader);
+                // The only label on a header line is from its (Execution starts at #..)
+                for (ScriptToken token : tokens) {
+                    if (token.kind() == ScriptToken.Kind.LABEL) {
+                        currentHeader.setScriptPC(parseLabel(token));
+                        break;
                     }
-                    // Give the parsed header a finished script and the current script offset
-                    currentHeader.setScriptBytes(scriptBytesArray);
-                    currentHeader.setScriptDataOffset(totalScriptLength);
-                    totalScriptLength += currentScriptBytes.size();
-
-                    // Reset for next header
-                    labels.clear();
-                    currentScriptBytes.clear();
-                    pos = 0;
                 }
+                // Start the recursive script parser for this header
+                byte[] scriptBytes = writer.write(parseBlock());
+
+                // Give the parsed header a finished script and the current script offset
+                currentHeader.setScriptBytes(scriptBytes);
+                currentHeader.setScriptDataOffset(totalScriptLength);
+                totalScriptLength += scriptBytes.length;
             }
         }
-        scanner.close();
         return parsedHeaders;
     }
 
-    private void parseBlock() {
-        scanner.nextLine();
-        String line = scanner.nextLine().trim();
-        while (!line.equals("}")) {
-            if (!line.isEmpty()) {
-                parseValue(line, ValueMode.MAIN);
+    private void readLine() {
+        tokens = lexer.nextLine();
+        tokenIndex = 0;
+    }
+
+    private List<ScriptValue> parseBlock() {
+        lexer.skipLine();
+        List<ScriptValue> block = new ArrayList<>();
+        while (true) {
+            readLine();
+            if (tokens.size() == 1 && tokens.getFirst().isSymbol("}")) {
+                tokenIndex = 1;
+                return block;
+            }
+            if (!tokens.isEmpty()) {
+                ScriptValue value = parseValue(ValueMode.MAIN);
+                if (value != null) {
+                    block.add(value);
+                }
+                if (tokenIndex < tokens.size()) {
+                    throw error("Unexpected", peek(0));
+                }
             }
-            line = scanner.nextLine().trim();
         }
     }
 
-    private void parseValue(String value, ValueMode mode) {
-        String[] valueSplit = value.split(" +");
-        if (value.startsWith("#")) {
-            parseLabel(value, false, true);
-        } else if (value.matches("[@a-zA-Z0-9]+\\(.*")) {
+    /**
+     * @return The parsed value, or null if it does not compile to anything
+     */
+    private ScriptValue parseValue(ValueMode mode) {
+        ScriptToken token = next();
+        String text = token.text();
+        if (token.kind() == ScriptToken.Kind.LABEL) {
+            return new Label(parseLabel(token), text.endsWith(":"));
+        } else if (isTaskAt(-1)) {
             // Task, multitask, or function
-            parseTask(value, true);
-        } else if (valueSplit.length > 1 && valueSplit[1].equals("<ScriptRv>")) {
-            addByte(30);
-            addByte(1);
-            parseBlock();
-        } else if (valueSplit[0].equals("if")) {
+            tokenIndex--;
+            return parseTask(true);
+        } else if (mode == ValueMode.MAIN && peekIs(0, ScriptToken.Kind.SPECIAL, "ScriptRv")) {
+            // The rest of the line is the value ScriptReader shows, which is not compiled
+            tokenIndex = tokens.size();
+            return new ScriptRvIf(1, parseBlock());
+        } else if (peekIsSymbol(0, ".") && (token.kind() == ScriptToken.Kind.WORD || token.kind() == ScriptToken.Kind.NUMBER)) {
+            return parseObjectDot(token, mode);
+        } else if (token.is(ScriptToken.Kind.WORD, "if")) {
             // If
-            addByte(3);
-            parseIf(valueSplit);
-        } else if (valueSplit[0].equals("Goto")) {
-            // Goto
-            addByte(4);
-            if (valueSplit.length == 1) {
-                addInt(0, false);
-            } else {
-                parseLabel(valueSplit[1], true, true);
+            return parseIf();
+        } else if (token.is(ScriptToken.Kind.WORD, "Goto") || token.is(ScriptToken.Kind.WORD, "End")) {
+            // Goto or End
+            int type = text.equals("Goto") ? 4 : 5;
+            if (peekIs(0, ScriptToken.Kind.LABEL)) {
+                return new Jump(type, parseLabel(next()));
             }
-        } else if (valueSplit[0].equals("End")) {
-            // End
-            addByte(5);
-            if (valueSplit.length == 1) {
-                addInt(0, false);
-            } else {
-                parseLabel(valueSplit[1], true, true);
-            }
-        } else if (flagIds.containsKey(valueSplit[0])) {
+            return new Jump(type, Jump.NO_LABEL);
+        } else if (token.kind() == ScriptToken.Kind.WORD && flagIds.containsKey(text)) {
             // Flag
-            addByte(6);
-            addShort(flagIds.get(valueSplit[0]), true);
-            switch (mode) {
-                case MAIN -> parseFormula(value.substring(valueSplit[0].length()).trim());
-                case LHS, RHS -> parseOperator((valueSplit.length > 1) ? valueSplit[1] : "");
-                case PARAMETER -> addShort(0, false);
-            }
-        } else if (value.matches("\".*\"") && !DIALOGUE_FUNCTIONS.contains(currentTask)) {
-            addByte(21);
-            String str = value.substring(value.indexOf("\"") + 1, value.lastIndexOf("\""));
-            addInt(currentHeader.addString(str), true);
-        } else if (value.matches("\".*\"|[-0-9]+")) {
+            return withSuffix(new Flag(flagIds.get(text)), mode);
+        } else if (token.kind() == ScriptToken.Kind.STRING && !DIALOGUE_FUNCTIONS.contains(currentTask)) {
+            return new StringRef(currentHeader.addString(text));
+        } else if (token.kind() == ScriptToken.Kind.STRING || token.kind() == ScriptToken.Kind.NUMBER) {
             // Numeric
             if (mode == ValueMode.PARAMETER || mode == ValueMode.RHS) {
+                int type = 7;
                 if (currentTask != null && (currentTask.equals("TestGlobalFlag") || currentTask.equals("SetGlobalFlag") ||
                         currentTask.equals("ResetGlobalFlag"))) {
-                    addByte(22);
-                } else {
-                    addByte(7);
+                    type = 22;
                 }
-                if (value.matches("\".*\"")) {
-                    addString(value.substring(1, value.length() - 1));
-                } else {
-                    addInt(Integer.parseInt(value), true);
+                if (token.kind() == ScriptToken.Kind.STRING) {
+                    return new Dialogue(type, text);
                 }
-            } else {
-                addByte(7);
-                addInt(Integer.parseInt(value), true);
+                return new Numeric(type, Integer.parseInt(text));
+            } else if (token.kind() == ScriptToken.Kind.STRING) {
+                throw error("Dialogue is only allowed as a parameter, found", token);
             }
-        } else if (value.startsWith("var")) {
+            return new Numeric(7, Integer.parseInt(text));
+        } else if (isVariable(token)) {
             // Local Variable
-            addByte(10);
-            addByte(Integer.parseInt(valueSplit[0].substring(3)));
-            switch (mode) {
-                case MAIN -> parseFormula(value.substring(valueSplit[0].length()).trim());
-                case LHS, RHS -> parseOperator(value.substring(valueSplit[0].length()).trim());
-                case PARAMETER -> {
-                    addByte(0);
-                    addByte(0);
-                    addByte(0);
+            return withSuffix(new Variable(Integer.parseInt(text.substring(3))), mode);
+        } else if (token.is(ScriptToken.Kind.WORD, "Gosub")) {
+            return new Jump(17, parseLabel(expect(ScriptToken.Kind.LABEL)));
+        } else if (token.is(ScriptToken.Kind.WORD, "Return")) {
+            return new Simple(18);
+        } else if (token.is(ScriptToken.Kind.WORD, "Endint")) {
+            return new Simple(19);
+        } else if (token.is(ScriptToken.Kind.SPECIAL, "Anchor")) {
+            expectSymbol("=");
+            return new Anchor(Integer.parseInt(expect(ScriptToken.Kind.NUMBER).text()));
+        } else if (token.kind() == ScriptToken.Kind.SPECIAL && text.startsWith("TaskPause(") && text.endsWith(")")) {
+            String label = text.substring("TaskPause(".length(), text.length() - 1);
+            return new Jump(27, parseLabel(new ScriptToken(ScriptToken.Kind.LABEL, label, token.line(), token.column())));
+        }
+        throw error("Unexpected", token);
+    }
+
+    // Flags, variables, and properties have a formula in a block and can have an operator in a comparison
+    private ScriptValue withSuffix(ScriptValue value, ValueMode mode) {
+        return switch (mode) {
+            case MAIN -> new Assignment(value, parseFormula());
+            case LHS, RHS -> new Operation(value, parseOptionalOperator());
+            default -> value;
+        };
+    }
+
+    private ScriptValue parseObjectDot(ScriptToken objectName, ValueMode mode) {
+        next(); // The dot
+        if (isTaskAt(0)) {
+            // Object-Dot-Task
+            String name = peek(0).isSymbol("@") ? peek(1).text() : peek(0).text();
+            if (!functionIds.containsKey(name)) {
+                if (mode != ValueMode.MAIN && mode != ValueMode.PARAMETER) {
+                    throw error("Unknown function", peek(0).isSymbol("@") ? peek(1) : peek(0));
                 }
+                // Unknown functions are left out entirely
+                skipTask();
+                return null;
             }
-        } else if (valueSplit[0].equals("Gosub")) {
-            addByte(17);
-            parseLabel(valueSplit[1], true, true);
-        } else if (value.equals("Return")) {
-            addByte(18);
-        } else if (value.equals("Endint")) {
-            addByte(19);
-        } else if (value.startsWith("<Anchor>=")) {
-            String[] equalSplit = value.split("=");
-            addByte(Byte.parseByte(equalSplit[1]));
-        } else if (value.startsWith("<TaskPause")) {
-            addByte(27);
-            String[] parenSplit = value.split("\\(");
-            String numStr = parenSplit[1].substring(0, parenSplit[1].length() - 2);
-            parseLabel(numStr, true, true);
-        } else {
-            // Object-Dot
-            String[] dotSplit = value.split("\\.");
-            int parenIndex = dotSplit[1].indexOf("(");
-            if (parenIndex > 0) {
-                // Object-Dot-Task
-                String name = dotSplit[1].substring(0, parenIndex);
-                if (name.charAt(0) == '@') {
-                    name = name.substring(1);
-                }
-                if (functionIds.containsKey(name)) {
-                    if (mapDatabase.getFunctions().get(functionIds.get(name)).getType().equals("function")) {
-                        addByte(26);
-                    } else {
-                        addByte(25);
-                    }
-                    parseObjectName(dotSplit[0]);
-                    if (mode == ValueMode.MAIN) {
-                        parseValue(value.substring(dotSplit[0].length() + 1), ValueMode.REFERENCE);
-                    } else {
-                        parseTask(value.substring(dotSplit[0].length() + 1), false);
-                    }
-                }
-            } else {
-                // Object-Dot Only
-                addByte(20);
-                parseObjectName(dotSplit[0]);
-                parseReferenceName(valueSplit[0].substring(dotSplit[0].length() + 1));
-                if (mode == ValueMode.MAIN) {
-                    parseFormula(value.substring(valueSplit[0].length()).trim());
-                } else if (mode == ValueMode.LHS) {
-                    parseOperator(value.substring(valueSplit[0].length()).trim());
-                }
+            int type = mapDatabase.getFunctions().get(functionIds.get(name)).getType().equals("function") ? 26 : 25;
+            ObjectName object = parseObjectName(objectName.text());
+            if (mode == ValueMode.MAIN) {
+                return new ObjectTask(type, object, parseValue(ValueMode.REFERENCE));
             }
+            return new ObjectTask(type, object, parseTask(false));
         }
+        // Object-Dot Only
+        Property property = new Property(20, parseObjectName(objectName.text()), parseReferenceName(expect(ScriptToken.Kind.WORD)));
+        return (mode == ValueMode.RHS) ? property : withSuffix(property, mode);
     }
 
-    private void parseTask(String line, boolean writeBytes) {
-        String[] split = line.split("\\(");
-        currentTask = split[0];
-        boolean multitask = false;
-        if (currentTask.charAt(0) == '@') {
-            currentTask = currentTask.substring(1);
-            multitask = true;
+    private Task parseTask(boolean writeType) {
+        boolean multitask = peek(0).isSymbol("@");
+        if (multitask) {
+            next();
+        }
+        ScriptToken nameToken = expect(ScriptToken.Kind.WORD);
+        expectSymbol("(");
+        currentTask = nameToken.text();
+        Integer functionID = functionIds.get(currentTask);
+        if (functionID == null) {
+            throw error("Unknown function", nameToken);
         }
-        int functionID = functionIds.get(currentTask);
         SoupFunction function = mapDatabase.getFunctions().get(functionID);
 
-        if (writeBytes) {
+        int type = Task.NO_TYPE;
+        if (writeType) {
             if (multitask) {
-                addByte(1);
+                type = 1;
             } else {
-                addByte(function.getType().equals("task") ? 0 : 2);
+                type = function.getType().equals("task") ? 0 : 2;
             }
         }
-        addShort(functionID, true);
 
         int paramNum = function.getParamCount();
-        addByte(paramNum);
-        if (paramNum > 0) {
-            String[] params = split[1].substring(0, split[1].length() - 1).split(",");
-            for (int i = 0; i < paramNum; i++) {
-                parseValue(params[i], ValueMode.PARAMETER);
+        List<ScriptValue> params = new ArrayList<>(paramNum);
+        for (int i = 0; i < paramNum; i++) {
+            if (i > 0) {
+                expectSymbol(",");
+            }
+            ScriptValue param = parseValue(ValueMode.PARAMETER);
+            if (param != null) {
+                params.add(param);
             }
         }
+        // Any parameters past the function's count are ignored
+        skipToClosingParen();
         currentTask = null;
+        return new Task(type, functionID, paramNum, params);
+    }
+
+    // A task starts with its name and an opening parenthesis, and a multitask has an @ before its name
+    private boolean isTaskAt(int offset) {
+        if (peekIsSymbol(offset, "@")) {
+            offset++;
+        }
+        return peekIs(offset, ScriptToken.Kind.WORD) && peekIsSymbol(offset + 1, "(");
+    }
+
+    private void skipTask() {
+        if (peek(0).isSymbol("@")) {
+            next();
+        }
+        next();
+        expectSymbol("(");
+        skipToClosingParen();
     }
 
-    private void parseIf(String[] lineSplit) {
+    private void skipToClosingParen() {
+        int depth = 0;
+        while (true) {
+            ScriptToken token = next();
+            if (token.isSymbol("(")) {
+                depth++;
+            } else if (token.isSymbol(")") && depth-- == 0) {
+                return;
+            }
+        }
+    }
+
+    private If parseIf() {
+        List<Condition> conditions = new ArrayList<>();
         int conjunction;
-        int counter = 1;
         do {
             conjunction = 0;
-            parseValue(lineSplit[counter], ValueMode.LHS);
-            counter++;
-            addByte(COMPARISON_VALUES.get(lineSplit[counter]));
-            counter++;
-            parseValue(lineSplit[counter], ValueMode.RHS);
-            counter++;
-            if (lineSplit.length > counter) {
-                if (lineSplit[counter].equals("and")) {
-                    conjunction = 1;
-                    addByte(1);
-                } else {
-                    conjunction = 2;
-                    addByte(2);
-                }
-                counter++;
-            } else {
-                addByte(0);
+            ScriptValue left = parseValue(ValueMode.LHS);
+            ScriptToken comparison = next();
+            Integer comparisonValue = comparison.kind() == ScriptToken.Kind.SYMBOL ? COMPARISON_VALUES.get(comparison.text()) : null;
+            if (comparisonValue == null) {
+                throw error("Expected a comparison, found", comparison);
+            }
+            ScriptValue right = parseValue(ValueMode.RHS);
+            if (tokenIndex < tokens.size()) {
+                conjunction = next().is(ScriptToken.Kind.WORD, "and") ? 1 : 2;
             }
+            conditions.add(new Condition(left, comparisonValue, right, conjunction));
         } while (conjunction != 0);
+        return new If(conditions, parseBlock());
+    }
 
-        int arrayPos = pos;
-        addInt(0, false);
-        parseBlock();
-        byte[] lengthBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(pos).array();
-        for (int i = 0; i < lengthBytes.length; i++) {
-            currentScriptBytes.set(arrayPos + i, lengthBytes[i]);
+    private int parseLabel(ScriptToken label) {
+        String text = label.text();
+        try {
+            return Integer.parseInt(text, 1, text.endsWith(":") ? text.length() - 1 : text.length(), 16);
+        } catch (NumberFormatException e) {
+            throw error("Invalid label", label);
         }
     }
 
-    private int parseLabel(String label, boolean writeBytes, boolean savePos) {
-        int endIndex = label.indexOf(":");
-        int labelNum = Integer.parseInt(label.substring(1, (endIndex > 0) ? endIndex : label.length()), 16);
-        if (!labels.containsKey(labelNum)) {
-            labels.put(labelNum, new ArrayList<>());
+    private List<Operation> parseFormula() {
+        expectSymbol("=");
+        List<Operation> formula = new ArrayList<>();
+        int operator;
+        do {
+            ScriptValue value = parseValue(ValueMode.FORMULA);
+            operator = parseOperator(tokenIndex < tokens.size() ? next() : null);
+            formula.add(new Operation(value, operator));
+        } while (operator > 0 && operator < 10);
+        return formula;
+    }
+
+    // Comparisons can have an operator on a value, such as var1++, but usually do not
+    private int parseOptionalOperator() {
+        ScriptToken token = peek(0);
+        if (token != null && token.kind() == ScriptToken.Kind.SYMBOL && OPERATOR_VALUES.containsKey(token.text())) {
+            return parseOperator(next());
         }
-        if (savePos) {
-            if (endIndex > 0) {
-                labels.get(labelNum).addFirst(pos);
-            } else {
-                labels.get(labelNum).add(pos);
-            }
+        return 0;
+    }
+
+    private int parseOperator(ScriptToken token) {
+        Integer operator = (token == null) ? Integer.valueOf(0) : OPERATOR_VALUES.get(token.text());
+        if (operator == null) {
+            throw error("Expected an operator, found", token);
         }
-        if (writeBytes) {
-            addInt(0, false);
+        return operator;
+    }
+
+    private ObjectName parseObjectName(String line) {
+        if (OBJECT_NAME_VALUES.containsKey(line)) {
+            return new ObjectName(OBJECT_NAME_VALUES.get(line), 0);
+        } else if (isStringObjectName(line)) {
+            return new ObjectName(4, currentHeader.addString(line));
         }
-        return labelNum;
+        return new ObjectName(10, ObjectName.NO_VALUE);
     }
 
-    private void parseFormula(String line) {
-        String[] lineSplit = line.split(" +");
-        int counter = 1;
-        do {
-            parseValue(lineSplit[counter++], ValueMode.FORMULA);
-        } while (parseOperator((counter < lineSplit.length) ? lineSplit[counter++] : ""));
+    // Object names from the header's strings are lowercase, such as cyrus or tobias_1
+    private static boolean isStringObjectName(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' || c == '_')) {
+                return false;
+            }
+        }
+        return !line.isEmpty();
     }
 
-    private boolean parseOperator(String line) {
-        boolean wantsValue = false;
-        int operator = OPERATOR_VALUES.get(line);
-        addByte(operator);
-        if (operator == 10 || operator == 11) {
-            addByte(0);
+    private static boolean isVariable(ScriptToken token) {
+        String text = token.text();
+        if (token.kind() != ScriptToken.Kind.WORD || !text.startsWith("var") || text.length() == 3) {
+            return false;
         }
-        if (operator > 0 && operator < 10) {
-            wantsValue = true;
+        for (int i = 3; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
         }
-        return wantsValue;
+        return true;
     }
 
-    private void parseObjectName(String line) {
-        if (OBJECT_NAME_VALUES.containsKey(line)) {
-            addByte(OBJECT_NAME_VALUES.get(line));
-            addByte(0);
-        } else if (line.matches("[a-z0-9._]+")) {
-            addByte(4);
-            addByte(currentHeader.addString(line));
-        } else {
-            addByte(10);
+    private int parseReferenceName(ScriptToken token) {
+        Integer reference = references.get(token.text());
+        if (reference == null) {
+            throw error("Unknown reference", token);
         }
+        return reference;
     }
 
-    private void parseReferenceName(String line) {
-        addShort(references.get(line), true);
+    private ScriptToken peek(int offset) {
+        int index = tokenIndex + offset;
+        return (index >= 0 && index < tokens.size()) ? tokens.get(index) : null;
     }
 
-    private void addString(String str) {
-        pos += 4;
-        byte[] array = str.getBytes();
-        for (byte b : array) {
-            currentScriptBytes.add(b);
+    private boolean peekIs(int offset, ScriptToken.Kind kind) {
+        ScriptToken token = peek(offset);
+        return token != null && token.kind() == kind;
+    }
+
+    private boolean peekIs(int offset, ScriptToken.Kind kind, String text) {
+        ScriptToken token = peek(offset);
+        return token != null && token.is(kind, text);
+    }
+
+    private boolean peekIsSymbol(int offset, String text) {
+        return peekIs(offset, ScriptToken.Kind.SYMBOL, text);
+    }
+
+    private ScriptToken next() {
+        if (tokenIndex >= tokens.size()) {
+            throw error("Unexpected end of line", null);
         }
+        return tokens.get(tokenIndex++);
     }
 
-    private void addInt(int num, boolean littleEndian) {
-        pos += 4;
-        byte[] array = ByteBuffer.allocate(4).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).putInt(num).array();
-        for (byte b : array) {
-            currentScriptBytes.add(b);
+    private ScriptToken expect(ScriptToken.Kind kind) {
+        ScriptToken token = next();
+        if (token.kind() != kind) {
+            throw error("Expected " + kind + ", found", token);
         }
+        return token;
     }
 
-    private void addShort(int num, boolean littleEndian) {
-        pos += 2;
-        byte[] array = ByteBuffer.allocate(2).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).putShort((short) num).array();
-        for (byte b : array) {
-            currentScriptBytes.add(b);
+    private void expectSymbol(String symbol) {
+        ScriptToken token = next();
+        if (!token.isSymbol(symbol)) {
+            throw error("Expected '" + symbol + "', found", token);
         }
     }
 
-    private void addByte(int num) {
-        pos += 1;
-        currentScriptBytes.add((byte) num);
+    private ScriptToken findSymbol(String symbol) {
+        for (ScriptToken token : tokens) {
+            if (token.isSymbol(symbol)) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private IllegalArgumentException error(String message, ScriptToken token) {
+        if (token == null) {
+            return new IllegalArgumentException(message + " at the end of line " + (lexer.getLineNumber() + 1)
+                    + ": " + lexer.getLineText().trim());
+        }
+        return new IllegalArgumentException(message + " " + token);
     }
-}
\ No newline at end of file
+}
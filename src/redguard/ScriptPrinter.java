@@ -0,0 +1,209 @@
+package redguard;
+
+import redguard.ScriptValue.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a header's {@link ScriptValue}s as readable script text, which {@link ScriptParser} can compile back.
+ */
+public class ScriptPrinter {
+    private static final String[] COMPARISONS = {
+            " = ", " != ", " < ", " > ", " <= ", " >= "
+    };
+
+    private static final String[] OPERATORS = {
+            "", " + ", " - ", " / ", " * ", " << ", " >> ", " & ", " | ", " ^ ", "++", "--"
+    };
+
+    private static final String[] OBJECT_NAMES = {
+            "Me", "Player", "Camera"
+    };
+
+    private final MapDatabase mapDatabase;
+    private final MapHeader header;
+    // Instructions have their label as their address, or -1 if they have none
+    private final List<ScriptInstruction> instructions;
+    private ScriptInstruction currentInstruction;
+    private int pendingLabel;
+    private int indentLevel;
+
+    public ScriptPrinter(MapDatabase mapDatabase, MapHeader header) {
+        this.mapDatabase = mapDatabase;
+        this.header = header;
+        instructions = new ArrayList<>();
+        pendingLabel = -1;
+        indentLevel = 0;
+    }
+
+    /**
+     * @param block The values of the header's script
+     * @return The header's readable script
+     */
+    public String print(List<ScriptValue> block) {
+        StringBuilder script = new StringBuilder();
+        try {
+            print(block, script);
+        } catch (IOException e) {
+            // A StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+        return script.toString();
+    }
+
+    /**
+     * Write the header's readable script a line at a time, without keeping the whole script in memory.
+     *
+     * @param block  The values of the header's script
+     * @param script Where to write the script
+     * @throws IOException If writing fails
+     */
+    public void print(List<ScriptValue> block, Appendable script) throws IOException {
+        printBlock(block);
+
+        // Begin writing a readable script based on the list of instructions
+        script.append(header.getName()); // Header name
+        // If scriptPC is not 0, then execution starts at a label
+        if (header.getScriptPC() > 0) {
+            script.append(" (Execution starts at ").append(ScriptInstruction.makeLabel(header.getScriptPC())).append(")");
+        }
+        script.append("\n{\n"); // Opening curly brace for header
+
+        // Loop through all instructions and write the script, adding indentation. The Instruction class takes care of details.
+        indentLevel = 1;
+        for (ScriptInstruction instruction : instructions) {
+            instruction.build(script, indentLevel, instruction.getAddress() >= 0);
+            indentLevel = instruction.getIndentLevel();
+        }
+        script.append("}"); // Closing curly brace for header
+    }
+
+    private void printBlock(List<ScriptValue> block) {
+        indentLevel++;
+        for (ScriptValue value : block) {
+            if (value instanceof Label label && label.definition()) {
+                pendingLabel = label.label();
+                continue;
+            }
+            startInstruction();
+            printValue(value);
+        }
+        if (pendingLabel >= 0) {
+            // A label at the end of a block goes on an empty instruction
+            startInstruction();
+        }
+        indentLevel--;
+    }
+
+    private void startInstruction() {
+        currentInstruction = new ScriptInstruction(pendingLabel, indentLevel);
+        instructions.add(currentInstruction);
+        pendingLabel = -1;
+    }
+
+    private void printValue(ScriptValue value) {
+        switch (value) {
+            case Task task -> printTask(task);
+            case If anIf -> {
+                currentInstruction.appendText("if ");
+                for (Condition condition : anIf.conditions()) {
+                    printValue(condition.left());
+                    currentInstruction.appendText(COMPARISONS[condition.comparison()]);
+                    printValue(condition.right());
+                    if (condition.conjunction() > 0) {
+                        currentInstruction.appendText((condition.conjunction() == 1) ? " and " : " or ");
+                    }
+                }
+                printBlock(anIf.block());
+            }
+            case Jump jump -> {
+                switch (jump.type()) {
+                    case 4, 5 -> {
+                        currentInstruction.appendText((jump.type() == 4) ? "Goto" : "End");
+                        if (jump.label() != Jump.NO_LABEL) {
+                            currentInstruction.appendText(" " + ScriptInstruction.makeLabel(jump.label()));
+                        }
+                    }
+                    case 17 -> currentInstruction.appendText("Gosub " + ScriptInstruction.makeLabel(jump.label()));
+                    case 27 -> currentInstruction.appendText("<TaskPause(" + ScriptInstruction.makeLabel(jump.label()) + ")>");
+                }
+            }
+            case Flag flag -> currentInstruction.appendText(mapDatabase.getFlags().get(flag.flag()).getName());
+            case Numeric number -> currentInstruction.appendText(String.valueOf(number.value()));
+            case Dialogue dialogue -> {
+                String subtitle = mapDatabase.getRtxEntries().get(dialogue.text());
+                if (subtitle != null) {
+                    currentInstruction.setComment("Dlg " + dialogue.text() + " = " + subtitle);
+                }
+                currentInstruction.appendText('"' + dialogue.text() + '"');
+            }
+            case ItemNumber item -> currentInstruction.appendText("<" + mapDatabase.getItems().get(item.item()).getName() + ">");
+            case MapNumber map -> currentInstruction.appendText("<" + mapDatabase.getMapFileFromId(map.map()).getName() + ">");
+            case Variable variable -> currentInstruction.appendText("var").appendText(String.valueOf(variable.index()));
+            case Property property -> {
+                printObjectName(property.object());
+                currentInstruction.appendText(mapDatabase.getReferences().get(property.reference() & 0xff));
+                if (property.type() == 15 || property.type() == 16) {
+                    currentInstruction.appendText((property.type() == 15) ? "++" : "--");
+                }
+            }
+            case Simple simple -> currentInstruction.appendText((simple.type() == 18) ? "Return" : "Endint");
+            case StringRef string -> currentInstruction.appendText('"' + header.getStrings().get(string.index()) + '"');
+            case Anchor anchor -> currentInstruction.appendText("<Anchor>=" + anchor.value());
+            case ObjectTask objectTask -> {
+                printObjectName(objectTask.object());
+                printValue(objectTask.call());
+            }
+            case ScriptRvIf scriptRvIf -> {
+                currentInstruction.appendText("if <ScriptRv> = " + scriptRvIf.value());
+                printBlock(scriptRvIf.block());
+            }
+            case Assignment assignment -> {
+                printValue(assignment.target());
+                currentInstruction.appendText(" = ");
+                for (Operation operation : assignment.formula()) {
+                    printValue(operation);
+                }
+                if (assignment.target() instanceof Flag flag) {
+                    currentInstruction.setComment(mapDatabase.getFlags().get(flag.flag()).getComment());
+                }
+            }
+            case Operation operation -> {
+                printValue(operation.value());
+                if (operation.operator() > 0 && operation.operator() < OPERATORS.length) {
+                    currentInstruction.appendText(OPERATORS[operation.operator()]);
+                }
+            }
+            case Label label -> currentInstruction.appendText(ScriptInstruction.makeLabel(label.label()));
+            case RawByte _ -> {
+                // Unknown values have no text
+            }
+        }
+    }
+
+    private void printTask(Task task) {
+        if (task.type() == 1) {
+            currentInstruction.appendText("@");
+        }
+        currentInstruction.appendText(mapDatabase.getFunctions().get(task.function()).getName() + "(");
+        for (int i = 0; i < task.params().size(); i++) {
+            if (i != 0) {
+                currentInstruction.appendText(", ");
+            }
+            printValue(task.params().get(i));
+        }
+        currentInstruction.appendText(")");
+    }
+
+    private void printObjectName(ObjectName objectName) {
+        switch (objectName.type()) {
+            case 0, 1, 2 -> currentInstruction.appendText(OBJECT_NAMES[objectName.type()]);
+            case 4 -> currentInstruction.appendText(header.getStrings().get(objectName.value()));
+            case 10 -> currentInstruction.appendText(String.valueOf(header.getVariables().get(objectName.value())));
+        }
+        currentInstruction.appendText(".");
+    }
+}
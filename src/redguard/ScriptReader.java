@@ -1,12 +1,20 @@
 package redguard;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import redguard.ScriptValue.*;
+
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+
+import static modManager.RedguardModManager.logger;
 
 public class ScriptReader {
     private enum ValueMode {
@@ -17,19 +25,8 @@ public class ScriptReader {
         NORMAL, DIALOGUE, MAP, ITEM
     }
 
-    private static final String[] COMPARISONS = {
-            " = ", " != ", " < ", " > ", " <= ", " >= "
-    };
-
-    private static final String[] OPERATORS = {
-            "", " + ", " - ", " / ", " * ", " << ", " >> ", " & ", " | ", " ^ ", "++", "--"
-    };
-
-    private static final String[] OBJECT_NAMES = {
-            "Me", "Player", "Camera"
-    };
-
     private static final Map<String, ParameterType> PARAMETER_TYPES = new HashMap<>();
+    private static final Charset SCRIPT_CHARSET = Charset.forName("IBM437");
 
     static {
         PARAMETER_TYPES.put("ACTIVATE0", ParameterType.DIALOGUE);
@@ -54,302 +51,282 @@ public class ScriptReader {
 
     private final MapDatabase mapDatabase;
     private final MapHeader header;
-    private final DataInputStream input;
-    private final List<ScriptInstruction> instructions;
-    private ScriptInstruction currentInstruction;
-    private final List<Integer> labels;
-    private int pos;
-    private int indentLevel;
+    // Cursor over the script bytes, where the position is the address of the next byte to read
+    private final ByteBuffer input;
+    // Every instruction that was read, so label definitions can be put in front of the ones that are jumped to
+    private final List<InstructionRef> instructionRefs;
+    // Addresses that are the target of a label
+    private final BitSet labels;
     private String currentTask;
     private int taskParamNum;
 
     public ScriptReader(MapDatabase mapDatabase, MapHeader header) {
         this.mapDatabase = mapDatabase;
         this.header = header;
-        input = new DataInputStream(new ByteArrayInputStream(header.getScriptBytes()));
-        instructions = new ArrayList<>();
-        labels = new ArrayList<>();
-        pos = 0;
-        indentLevel = 0;
+        input = ByteBuffer.wrap(header.getScriptBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        instructionRefs = new ArrayList<>();
+        labels = new BitSet(input.limit());
         currentTask = null;
         taskParamNum = 0;
     }
 
-    public String read() throws IOException {
+    /**
+     * Read the header's script as values, without making any text.
+     *
+     * @return The values of the script, with a label definition in front of each instruction that is jumped to
+     * @throws IOException If the script ends in the middle of a value
+     */
+    public List<ScriptValue> readValues() throws IOException {
         // Starts recursive reading of entire script for this header
-        getBlock(header.getScriptLength());
-
-        // Begin building a readable script based on the list of instructions
-        StringBuilder script = new StringBuilder();
-        script.append(header.getName()); // Header name
+        List<ScriptValue> block = getBlock(header.getScriptLength());
         // If scriptPC is not 0, then execution starts at a label
         if (header.getScriptPC() > 0) {
-            script.append(" (Execution starts at ").append(addLabel(header.getScriptPC())).append(")");
+            addLabel(header.getScriptPC());
         }
-        script.append("\n{\n"); // Opening curly brace for header
-
-        // Loop through all instructions and write the script, adding indentation. The Instruction class takes care of details.
-        indentLevel = 1;
-        for (ScriptInstruction instruction : instructions) {
-            instruction.build(script, indentLevel, labels.contains(instruction.getAddress()));
-            indentLevel = instruction.getIndentLevel();
+        // Going backwards keeps the indexes of earlier instructions in the same block correct
+        for (int i = instructionRefs.size() - 1; i >= 0; i--) {
+            InstructionRef ref = instructionRefs.get(i);
+            if (labels.get(ref.address())) {
+                ref.block().add(ref.index(), new Label(ref.address(), true));
+            }
         }
-        script.append("}"); // Closing curly brace for header
+        return block;
+    }
 
-        return script.toString();
+    public String read() throws IOException {
+        return new ScriptPrinter(mapDatabase, header).print(readValues());
+    }
+
+    /**
+     * Decompile the header's script straight into a writer, without building it as a string first.
+     *
+     * @param out Where to write the readable script
+     * @throws IOException If the script ends in the middle of a value, or writing fails
+     */
+    public void read(Appendable out) throws IOException {
+        new ScriptPrinter(mapDatabase, header).print(readValues(), out);
     }
 
-    private void getValue(ValueMode mode) throws IOException {
+    private ScriptValue getValue(ValueMode mode) throws IOException {
         // Value determines what to do next
         int valueType = readByte();
         switch (valueType) {
             case 0: // Task
             case 1: // Multitask
             case 2: // Function
-                getTaskText(valueType);
-                break;
+                return getTask(valueType);
             case 3: // If
-                getIf();
-                break;
+                return getIf();
             case 4: // Goto
-                getLabel("Goto");
-                break;
             case 5: // End
-                getLabel("End");
-                break;
+                int label = readInt();
+                return new Jump(valueType, (label != 0) ? addLabel(label) : Jump.NO_LABEL);
             case 6: // Flag
-                int flagIndex = readShort();
-                SoupFlag flag = mapDatabase.getFlags().get(flagIndex);
-                currentInstruction.appendText(flag.getName());
+                Flag flag = new Flag(readShort());
                 switch (mode) {
                     case MAIN -> {
-                        getFormula();
-                        currentInstruction.setComment(flag.getComment());
+                        return new Assignment(flag, getFormula());
+                    }
+                    case LHS, RHS -> {
+                        return new Operation(flag, getOperator());
                     }
-                    case LHS, RHS -> getOperator();
                     case PARAMETER -> readShort();
                 }
-                break;
+                return flag;
             case 7:
             case 22: // Numeric
                 if (mode == ValueMode.PARAMETER || mode == ValueMode.RHS) {
-                    currentInstruction.appendText(readIntFlexible());
-                } else {
-                    currentInstruction.appendText(String.valueOf(readInt()));
+                    return readIntFlexible(valueType);
                 }
-                break;
+                return new Numeric(valueType, readInt());
             case 10: // Local Variable
-                int varIndex = readByte();
-                currentInstruction.appendText("var").appendText(String.valueOf(varIndex));
+                Variable variable = new Variable(readByte());
                 switch (mode) {
-                    case MAIN -> getFormula();
-                    case LHS, RHS -> getOperator();
+                    case MAIN -> {
+                        return new Assignment(variable, getFormula());
+                    }
+                    case LHS, RHS -> {
+                        return new Operation(variable, getOperator());
+                    }
                     case PARAMETER -> {
                         readByte();
                         readByte();
                         readByte();
                     }
                 }
-                break;
+                return variable;
             case 15:
             case 16: // Object-Dot Only with ++ or -- operator
-                getObjectName();
-                getReferenceName();
-                currentInstruction.appendText((valueType == 15) ? "++" : "--");
-                break;
+                return new Property(valueType, getObjectName(), readShort());
             case 17: // Gosub
-                currentInstruction.appendText("Gosub " + addLabel(readInt()));
-                break;
+                return new Jump(valueType, addLabel(readInt()));
             case 18: // Return
-                currentInstruction.appendText("Return");
-                break;
             case 19: // Endint
-                currentInstruction.appendText("Endint");
-                break;
+                return new Simple(valueType);
             case 20: // Object-Dot Only
-                getObjectName();
-                getReferenceName();
+                Property property = new Property(valueType, getObjectName(), readShort());
                 if (mode == ValueMode.MAIN) {
-                    getFormula();
+                    return new Assignment(property, getFormula());
                 } else if (mode == ValueMode.LHS) {
-                    getOperator();
+                    return new Operation(property, getOperator());
                 }
-                break;
+                return property;
             case 21: // String
-                int stringIndex = readInt();
-                currentInstruction.appendText('"' + header.getStrings().get(stringIndex) + '"');
-                break;
+                return new StringRef(readInt());
             case 23: // <Anchor>=
-                int anchor = readByte();
-                currentInstruction.appendText("<Anchor>=" + anchor);
-                break;
+                return new Anchor(readByte());
             case 25: // Object-Dot-Task
             case 26:
-                getObjectName();
+                ObjectName objectName = getObjectName();
                 if (mode == ValueMode.MAIN) {
-                    getValue(ValueMode.REFERENCE);
-                } else {
-                    getTaskText(26);
+                    return new ObjectTask(valueType, objectName, getValue(ValueMode.REFERENCE));
                 }
-                break;
+                return new ObjectTask(valueType, objectName, getTask(Task.NO_TYPE));
             case 27: // TaskPause
-                int taskNum = readInt();
-                String label = addLabel(taskNum);
-                currentInstruction.appendText("<TaskPause(" + label + ")>");
-                break;
+                return new Jump(valueType, addLabel(readInt()));
             case 30: // if <ScriptRV> =
                 int value = readByte();
-                currentInstruction.appendText("if <ScriptRv> = " + value);
-                getBlock(pos + 4);
-                break;
+                return new ScriptRvIf(value, getBlock(input.position() + 4));
+            default:
+                return new RawByte(valueType);
         }
     }
 
-    private void getBlock(int lastPos) throws IOException {
-        indentLevel++;
-        while (pos < lastPos) {
-            currentInstruction = new ScriptInstruction(pos, indentLevel);
-            instructions.add(currentInstruction);
-            getValue(ValueMode.MAIN);
+    private List<ScriptValue> getBlock(int lastPos) throws IOException {
+        List<ScriptValue> block = new ArrayList<>();
+        while (input.position() < lastPos) {
+            instructionRefs.add(new InstructionRef(block, block.size(), input.position()));
+            block.add(getValue(ValueMode.MAIN));
         }
-        indentLevel--;
+        return block;
     }
 
-    private void getTaskText(int taskType) throws IOException {
+    private Task getTask(int taskType) throws IOException {
         int id = readShort();
-        if (taskType == 1) {
-            currentInstruction.appendText("@");
-        }
         currentTask = mapDatabase.getFunctions().get(id).getName();
-        currentInstruction.appendText(currentTask + "(");
-        int numParams = (id == 0) ? 0 : readByte();
+        int numParams = (id == 0) ? Task.NO_PARAM_COUNT : readByte();
+        List<ScriptValue> params = new ArrayList<>(Math.max(numParams, 0));
         if (numParams > 0) {
             for (int i = 0; i < numParams; i++) {
-                if (i != 0) {
-                    currentInstruction.appendText(", ");
-                }
                 taskParamNum = i;
-                getValue(ValueMode.PARAMETER);
+                params.add(getValue(ValueMode.PARAMETER));
             }
             taskParamNum = 9;
         }
-        currentInstruction.appendText(")");
+        return new Task(taskType, id, numParams, params);
     }
 
-    private void getIf() throws IOException {
-        currentInstruction.appendText("if ");
+    private If getIf() throws IOException {
+        List<Condition> conditions = new ArrayList<>();
         int conjunction;
         do {
-            getValue(ValueMode.LHS);
+            ScriptValue left = getValue(ValueMode.LHS);
             int comparison = readByte();
-            currentInstruction.appendText(COMPARISONS[comparison]);
-            getValue(ValueMode.RHS);
+            ScriptValue right = getValue(ValueMode.RHS);
             conjunction = readByte();
-            if (conjunction > 0) {
-                currentInstruction.appendText((conjunction == 1) ? " and " : " or ");
-            }
+            conditions.add(new Condition(left, comparison, right, conjunction));
         } while (conjunction != 0);
         int end = readInt();
-        getBlock(end);
+        return new If(conditions, getBlock(end));
     }
 
-    private void getLabel(String prefix) throws IOException {
-        int label = readInt();
-        currentInstruction.appendText(prefix);
-        if (label != 0) {
-            currentInstruction.appendText(" " + addLabel(label));
+    private int addLabel(int label) {
+        // Labels outside the script cannot be in front of an instruction
+        if (label >= 0 && label < input.limit()) {
+            labels.set(label);
         }
+        return label;
     }
 
-    private String addLabel(int label) {
-        labels.add(label);
-        return ScriptInstruction.makeLabel(label);
-    }
-
-    private void getFormula() throws IOException {
-        currentInstruction.appendText(" = ");
+    private List<Operation> getFormula() throws IOException {
+        List<Operation> formula = new ArrayList<>();
+        int operator;
         do {
-            getValue(ValueMode.FORMULA);
-        } while (getOperator());
+            ScriptValue value = getValue(ValueMode.FORMULA);
+            operator = getOperator();
+            formula.add(new Operation(value, operator));
+        } while (operator > 0 && operator < 10);
+        return formula;
     }
 
-    private boolean getOperator() throws IOException {
+    private int getOperator() throws IOException {
         int operator = readByte();
         if (operator == 10 || operator == 11) {
-            currentInstruction.appendText(OPERATORS[operator]);
             readByte();
-            return false;
-        }
-        boolean wantsValue = false;
-        if (operator > 0 && operator < 10) {
-            currentInstruction.appendText(OPERATORS[operator]);
-            wantsValue = true;
         }
-        return wantsValue;
+        return operator;
     }
 
-    private void getObjectName() throws IOException {
+    private ObjectName getObjectName() throws IOException {
         int paramValue = readByte();
-        switch (paramValue) {
-            case 0, 1, 2 -> {
-                currentInstruction.appendText(OBJECT_NAMES[paramValue]);
-                readByte();
-            }
-            case 4 -> currentInstruction.appendText(header.getStrings().get(readByte()));
-            case 10 -> currentInstruction.appendText(String.valueOf(header.getVariables().get(readByte())));
-        }
-        currentInstruction.appendText(".");
+        return switch (paramValue) {
+            case 0, 1, 2, 4, 10 -> new ObjectName(paramValue, readByte());
+            default -> new ObjectName(paramValue, ObjectName.NO_VALUE);
+        };
     }
 
-    private void getReferenceName() throws IOException {
-        int offset = readShort() & 0xff;
-        currentInstruction.appendText(mapDatabase.getReferences().get(offset));
-    }
-
-    private String readIntFlexible() throws IOException {
+    private ScriptValue readIntFlexible(int valueType) throws IOException {
         // Determine how to read an integer based on the current task. Not actually necessary, but allows for more readable scripts.
         ParameterType paramType = PARAMETER_TYPES.getOrDefault(currentTask + taskParamNum, ParameterType.NORMAL);
         switch (paramType) {
             case DIALOGUE:
-                String text = readString();
-                String subtitle = mapDatabase.getRtxEntries().get(text);
-                if (subtitle != null) {
-                    currentInstruction.setComment("Dlg " + text + " = " + subtitle);
-                }
                 currentTask = null;
-                return '"' + text + '"';
+                return new Dialogue(valueType, readString());
             case ITEM:
-                int itemId = readInt();
-                String itemName = mapDatabase.getItems().get(itemId).getName();
                 currentTask = null;
-                return "<" + itemName + ">";
+                return new ItemNumber(valueType, readInt());
             case MAP:
-                int mapId = readInt();
-                String mapName = mapDatabase.getMapFileFromId(mapId).getName();
                 currentTask = null;
-                return "<" + mapName + ">";
+                return new MapNumber(valueType, readInt());
             default:
-                return String.valueOf(readInt());
+                return new Numeric(valueType, readInt());
         }
     }
 
     private int readByte() throws IOException {
-        pos++;
-        return Utils.readUnsignedByte(input);
+        if (!input.hasRemaining()) {
+            throw new EOFException("End of script reached at " + input.position() + " in header " + header.getName());
+        }
+        return input.get() & 0xff;
     }
 
     private int readShort() throws IOException {
-        pos += 2;
-        return Utils.readLittleEndianShort(input);
+        if (input.remaining() >= 2) {
+            return input.getShort() & 0xffff;
+        }
+        return Utils.byteArrayToInt(readPartial(2), true);
     }
 
     private int readInt() throws IOException {
-        pos += 4;
-        return Utils.readLittleEndianInt(input);
+        if (input.remaining() >= 4) {
+            return input.getInt();
+        }
+        return Utils.byteArrayToInt(readPartial(4), true);
     }
 
     private String readString() throws IOException {
-        pos += 4;
-        return Utils.readString(input, 4);
+        byte[] bytes = new byte[4];
+        if (input.remaining() >= 4) {
+            input.get(bytes);
+        } else {
+            bytes = readPartial(4);
+        }
+        String text = new String(bytes, SCRIPT_CHARSET);
+        if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+            text = text.lines().collect(Collectors.joining("\n"));
+        }
+        return text;
+    }
+
+    // A value cut off by the end of the script keeps what is there and is zero after that
+    private byte[] readPartial(int numBytes) {
+        logger.warning("End of script reached early while reading " + numBytes + " bytes in header " + header.getName() + ".");
+        byte[] bytes = new byte[numBytes];
+        input.get(bytes, 0, input.remaining());
+        return bytes;
+    }
+
+    // Where an instruction was put in a block, and where it was in the script bytes
+    private record InstructionRef(List<ScriptValue> block, int index, int address) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,198 @@
+package redguard;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static modManager.RedguardModManager.logger;
+
+/**
+ * Trigram index over the decompiled scripts of every map, for finding text in all maps at once. The scripts are split
+ * into chunks of lines, and each trigram of lowercase text lists the chunks that have it. A search only looks through
+ * the chunks that have every trigram of the query, so most of the text is never scanned.
+ */
+public class ScriptSearchIndex {
+    // Lines in each chunk, which trades the size of the index against the lines checked for each chunk found
+    private static final int CHUNK_LINES = 32;
+
+    /**
+     * @param line      The line in the map's decompiled script, starting from 0
+     * @param wholeWord Whether the match is not part of a longer name
+     */
+    public record Hit(String map, int line, String text, boolean wholeWord) {
+        @Override
+        public String toString() {
+            return map + " line " + (line + 1) + ": " + text.strip();
+        }
+    }
+
+    private final List<String> mapNames;
+    private final List<String[]> mapLines;
+    // Map index and first line of each chunk
+    private final int[] chunkMaps;
+    private final int[] chunkStarts;
+    // Chunks that have each trigram, in increasing order
+    private final Map<Long, int[]> postings;
+
+    private ScriptSearchIndex(List<String> mapNames, List<String[]> mapLines) {
+        this.mapNames = mapNames;
+        this.mapLines = mapLines;
+        int numChunks = 0;
+        for (String[] lines : mapLines) {
+            numChunks += (lines.length + CHUNK_LINES - 1) / CHUNK_LINES;
+        }
+        chunkMaps = new int[numChunks];
+        chunkStarts = new int[numChunks];
+
+        Map<Long, int[]> builders = new HashMap<>();
+        Map<Long, Integer> sizes = new HashMap<>();
+        Set<Long> chunkTrigrams = new HashSet<>();
+        int chunk = 0;
+        for (int map = 0; map < mapLines.size(); map++) {
+            String[] lines = mapLines.get(map);
+            for (int start = 0; start < lines.length; start += CHUNK_LINES, chunk++) {
+                chunkMaps[chunk] = map;
+                chunkStarts[chunk] = start;
+                chunkTrigrams.clear();
+                for (int line = start; line < Math.min(start + CHUNK_LINES, lines.length); line++) {
+                    addTrigrams(lines[line].toLowerCase(Locale.ROOT), chunkTrigrams);
+                }
+                for (long trigram : chunkTrigrams) {
+                    int size = sizes.getOrDefault(trigram, 0);
+                    int[] posting = builders.get(trigram);
+                    if (posting == null || size == posting.length) {
+                        posting = (posting == null) ? new int[4] : Arrays.copyOf(posting, size * 2);
+                        builders.put(trigram, posting);
+                    }
+                    posting[size] = chunk;
+                    sizes.put(trigram, size + 1);
+                }
+            }
+        }
+        postings = new HashMap<>();
+        for (Map.Entry<Long, int[]> entry : builders.entrySet()) {
+            postings.put(entry.getKey(), Arrays.copyOf(entry.getValue(), sizes.get(entry.getKey())));
+        }
+    }
+
+    /**
+     * Build the index from every map's decompiled script. Maps that cannot be read are left out with a warning.
+     *
+     * @param mapDatabase  The database with the maps to index
+     * @param sourceFolder The folder that map files are read from, which has the maps folder in it
+     * @return The index
+     * @throws InterruptedException If interrupted while waiting for the maps
+     */
+    public static ScriptSearchIndex build(MapDatabase mapDatabase, Path sourceFolder) throws InterruptedException {
+        MapBatch.Result<String[]> result = MapBatch.run(mapDatabase.getMapFiles(), mapFile -> {
+            MapFile copy = mapFile.readCopy(sourceFolder);
+            List<String> lines = new ArrayList<>();
+            try (LineWriter writer = new LineWriter(lines::add)) {
+                copy.writeScript(writer);
+            }
+            return lines.toArray(new String[0]);
+        });
+        for (MapBatch.Failure failure : result.getFailures()) {
+            logger.warning("Failed to index script text in map " + failure);
+        }
+        ScriptSearchIndex index = new ScriptSearchIndex(new ArrayList<>(result.getResults().keySet()),
+                new ArrayList<>(result.getResults().values()));
+        logger.info("Built script search index: " + result + ", " + index.postings.size() + " trigrams");
+        return index;
+    }
+
+    /**
+     * Find lines that have the query in them, ignoring case. Whole word matches come first, and otherwise hits are in
+     * map and line order.
+     *
+     * @param query   The text to find
+     * @param maxHits The most hits to return
+     * @return The hits
+     */
+    public List<Hit> search(String query, int maxHits) {
+        String lowerQuery = query.toLowerCase(Locale.ROOT);
+        if (lowerQuery.isEmpty()) {
+            return List.of();
+        }
+        int[] candidates = findChunks(lowerQuery);
+        List<Hit> wholeWordHits = new ArrayList<>();
+        List<Hit> partialHits = new ArrayList<>();
+        for (int chunk : candidates) {
+            String[] lines = mapLines.get(chunkMaps[chunk]);
+            for (int line = chunkStarts[chunk]; line < Math.min(chunkStarts[chunk] + CHUNK_LINES, lines.length); line++) {
+                String lowerLine = lines[line].toLowerCase(Locale.ROOT);
+                int index = lowerLine.indexOf(lowerQuery);
+                if (index < 0) {
+                    continue;
+                }
+                boolean wholeWord = false;
+                for (; index >= 0 && !wholeWord; index = lowerLine.indexOf(lowerQuery, index + 1)) {
+                    wholeWord = isWordBoundary(lowerLine, index - 1) && isWordBoundary(lowerLine, index + lowerQuery.length());
+                }
+                (wholeWord ? wholeWordHits : partialHits).add(new Hit(mapNames.get(chunkMaps[chunk]), line, lines[line], wholeWord));
+            }
+            // Whole word hits can still turn up in later chunks, so only stop once there are enough of them
+            if (wholeWordHits.size() >= maxHits) {
+                break;
+            }
+        }
+        wholeWordHits.addAll(partialHits);
+        return wholeWordHits.subList(0, Math.min(maxHits, wholeWordHits.size()));
+    }
+
+    // Chunks that could have the query, which is every chunk for queries too short to have a trigram
+    private int[] findChunks(String lowerQuery) {
+        Set<Long> trigrams = new HashSet<>();
+        addTrigrams(lowerQuery, trigrams);
+        if (trigrams.isEmpty()) {
+            int[] all = new int[chunkMaps.length];
+            Arrays.setAll(all, i -> i);
+            return all;
+        }
+        List<int[]> lists = new ArrayList<>();
+        for (long trigram : trigrams) {
+            int[] posting = postings.get(trigram);
+            if (posting == null) {
+                return new int[0];
+            }
+            lists.add(posting);
+        }
+        // Start from the rarest trigram so the intersection stays small
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        int[] result = lists.getFirst();
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static void addTrigrams(String text, Set<Long> trigrams) {
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            trigrams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+    }
+
+    private static boolean isWordBoundary(String text, int index) {
+        if (index < 0 || index >= text.length()) {
+            return true;
+        }
+        char c = text.charAt(index);
+        return !Character.isLetterOrDigit(c) && c != '_';
+    }
+}
@@ -0,0 +1,38 @@
+package redguard;
+
+/**
+ * A token of the readable script language, with where it was found in the script.
+ *
+ * @param kind   What sort of token this is
+ * @param text   The token text. Strings do not include their quotes, and map and item names are already replaced by
+ *               their ids as numbers.
+ * @param line   The line number in the script, starting from 0
+ * @param column The column in the line, starting from 0
+ */
+public record ScriptToken(Kind kind, String text, int line, int column) {
+    public enum Kind {
+        // Names of functions, flags, variables, objects, references, and keywords like if and Goto
+        WORD,
+        NUMBER,
+        STRING,
+        // A label such as #1A, or #1A: where it is defined
+        LABEL,
+        // Engine values in angle brackets that are not map or item names, such as <ScriptRv> or <TaskPause(#1A)>
+        SPECIAL,
+        // Operators, comparisons, and punctuation
+        SYMBOL
+    }
+
+    public boolean is(Kind kind, String text) {
+        return this.kind == kind && this.text.equals(text);
+    }
+
+    public boolean isSymbol(String text) {
+        return is(Kind.SYMBOL, text);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " '" + text + "' at line " + (line + 1) + ", column " + (column + 1);
+    }
+}
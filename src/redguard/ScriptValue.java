@@ -0,0 +1,160 @@
+package redguard;
+
+import java.util.List;
+
+/**
+ * A compiled script value, the form that scripts take between bytes and text. {@link ScriptReader} reads these from a
+ * header's script bytes and {@link ScriptParser} builds them from readable text. {@link ScriptWriter} turns them into
+ * script bytes and {@link ScriptPrinter} turns them into text.
+ * <p>
+ * Each record stands for one value in the script bytes, which starts with its type byte unless noted. A block is a list
+ * of values with a {@link Label} definition in front of each value that is jumped to. Label numbers are addresses when
+ * read from bytes and the numbers written in the text when parsed. Bytes that the game skips are not kept and are
+ * written as zeros.
+ */
+public sealed interface ScriptValue {
+    /**
+     * Task 0, multitask 1, or function 2.
+     *
+     * @param type       The type byte, or {@link #NO_TYPE} for the function of an object-dot-task outside a block
+     * @param function   The function id
+     * @param paramCount The parameter count byte, or {@link #NO_PARAM_COUNT} if there is none, which is the case for
+     *                   function 0 in the game's scripts
+     * @param params     The parameters
+     */
+    record Task(int type, int function, int paramCount, List<ScriptValue> params) implements ScriptValue {
+        public static final int NO_TYPE = -1;
+        public static final int NO_PARAM_COUNT = -1;
+    }
+
+    /**
+     * If 3. The block's end position is worked out when writing.
+     */
+    record If(List<Condition> conditions, List<ScriptValue> block) implements ScriptValue {
+    }
+
+    /**
+     * @param comparison  0 to 5 for =, !=, <, >, <=, >=
+     * @param conjunction 0 if this is the last condition, 1 for and, or 2 for or
+     */
+    record Condition(ScriptValue left, int comparison, ScriptValue right, int conjunction) {
+    }
+
+    /**
+     * Goto 4, End 5, Gosub 17, or TaskPause 27, followed by a label's position.
+     *
+     * @param label The label number, or {@link #NO_LABEL} to write 0
+     */
+    record Jump(int type, int label) implements ScriptValue {
+        public static final int NO_LABEL = -1;
+    }
+
+    /**
+     * Flag 6. As a task parameter, it is followed by two more bytes.
+     */
+    record Flag(int flag) implements ScriptValue {
+    }
+
+    /**
+     * Numeric 7 or 22.
+     */
+    record Numeric(int type, int value) implements ScriptValue {
+    }
+
+    /**
+     * Numeric 7 or 22 used as a dialogue parameter, where the number's bytes are the text of an RTX label.
+     */
+    record Dialogue(int type, String text) implements ScriptValue {
+    }
+
+    /**
+     * Numeric 7 or 22 used as an item parameter.
+     */
+    record ItemNumber(int type, int item) implements ScriptValue {
+    }
+
+    /**
+     * Numeric 7 or 22 used as a map parameter.
+     */
+    record MapNumber(int type, int map) implements ScriptValue {
+    }
+
+    /**
+     * Local variable 10. As a task parameter, it is followed by three more bytes.
+     */
+    record Variable(int index) implements ScriptValue {
+    }
+
+    /**
+     * Object-dot only 20, or 15 and 16 for ++ and -- on it.
+     */
+    record Property(int type, ObjectName object, int reference) implements ScriptValue {
+    }
+
+    /**
+     * The object before the dot in an object-dot value.
+     *
+     * @param type  0 to 2 for Me, Player, and Camera, 4 for a name in the header's strings, or 10 for a variable
+     * @param value The byte after the type, or {@link #NO_VALUE} if there is none
+     */
+    record ObjectName(int type, int value) {
+        public static final int NO_VALUE = -1;
+    }
+
+    /**
+     * Return 18 or Endint 19, which have nothing after their type.
+     */
+    record Simple(int type) implements ScriptValue {
+    }
+
+    /**
+     * String 21, an index into the header's strings.
+     */
+    record StringRef(int index) implements ScriptValue {
+    }
+
+    /**
+     * Anchor 23.
+     */
+    record Anchor(int value) implements ScriptValue {
+    }
+
+    /**
+     * Object-dot-task 25 or 26.
+     *
+     * @param call A whole value in a block, which is a task with its type, or otherwise a task with no type
+     */
+    record ObjectTask(int type, ObjectName object, ScriptValue call) implements ScriptValue {
+    }
+
+    /**
+     * If ScriptRv 30.
+     */
+    record ScriptRvIf(int value, List<ScriptValue> block) implements ScriptValue {
+    }
+
+    /**
+     * A flag, variable, or property in a block, followed by = and a formula.
+     */
+    record Assignment(ScriptValue target, List<Operation> formula) implements ScriptValue {
+    }
+
+    /**
+     * A value followed by an operator byte, with one more byte for ++ and --. In a formula, operators 1 to 9 are
+     * followed by another operation.
+     */
+    record Operation(ScriptValue value, int operator) implements ScriptValue {
+    }
+
+    /**
+     * A label's definition, or a reference to it on its own, neither of which writes any bytes.
+     */
+    record Label(int label, boolean definition) implements ScriptValue {
+    }
+
+    /**
+     * A single byte with no known meaning.
+     */
+    record RawByte(int value) implements ScriptValue {
+    }
+}
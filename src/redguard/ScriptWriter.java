@@ -0,0 +1,153 @@
+package redguard;
+
+import redguard.ScriptValue.*;
+
+import java.util.List;
+
+/**
+ * Writes {@link ScriptValue}s as script bytes, with labels backpatched to the positions of their definitions.
+ * A writer can be reused for any number of blocks.
+ */
+public class ScriptWriter {
+    private final ByteEmitter emitter;
+
+    public ScriptWriter() {
+        emitter = new ByteEmitter();
+    }
+
+    /**
+     * @param block The values of a header's script
+     * @return The header's script bytes
+     */
+    public byte[] write(List<ScriptValue> block) {
+        emitter.reset();
+        writeBlock(block);
+        emitter.resolveLabels();
+        return emitter.toByteArray();
+    }
+
+    private void writeBlock(List<ScriptValue> block) {
+        for (ScriptValue value : block) {
+            writeValue(value);
+        }
+    }
+
+    private void writeValue(ScriptValue value) {
+        switch (value) {
+            case Task task -> writeTask(task);
+            case If anIf -> {
+                emitter.putByte(3);
+                for (Condition condition : anIf.conditions()) {
+                    writeValue(condition.left());
+                    emitter.putByte(condition.comparison());
+                    writeValue(condition.right());
+                    emitter.putByte(condition.conjunction());
+                }
+                // The if block's end position goes in front of the block
+                int endSlot = emitter.reserveInt();
+                writeBlock(anIf.block());
+                emitter.setInt(endSlot, emitter.position(), true);
+            }
+            case Jump jump -> {
+                emitter.putByte(jump.type());
+                if (jump.label() == Jump.NO_LABEL) {
+                    emitter.putInt(0, true);
+                } else {
+                    emitter.markLabel(jump.label(), false);
+                    emitter.reserveInt();
+                }
+            }
+            case Flag flag -> {
+                emitter.putByte(6);
+                emitter.putShort(flag.flag(), true);
+            }
+            case Numeric number -> {
+                emitter.putByte(number.type());
+                emitter.putInt(number.value(), true);
+            }
+            case Dialogue dialogue -> {
+                emitter.putByte(dialogue.type());
+                emitter.putBytes(dialogue.text().getBytes());
+            }
+            case ItemNumber item -> {
+                emitter.putByte(item.type());
+                emitter.putInt(item.item(), true);
+            }
+            case MapNumber map -> {
+                emitter.putByte(map.type());
+                emitter.putInt(map.map(), true);
+            }
+            case Variable variable -> {
+                emitter.putByte(10);
+                emitter.putByte(variable.index());
+            }
+            case Property property -> {
+                emitter.putByte(property.type());
+                writeObjectName(property.object());
+                emitter.putShort(property.reference(), true);
+            }
+            case Simple simple -> emitter.putByte(simple.type());
+            case StringRef string -> {
+                emitter.putByte(21);
+                emitter.putInt(string.index(), true);
+            }
+            case Anchor anchor -> {
+                emitter.putByte(23);
+                emitter.putByte(anchor.value());
+            }
+            case ObjectTask objectTask -> {
+                emitter.putByte(objectTask.type());
+                writeObjectName(objectTask.object());
+                writeValue(objectTask.call());
+            }
+            case ScriptRvIf scriptRvIf -> {
+                emitter.putByte(30);
+                emitter.putByte(scriptRvIf.value());
+                writeBlock(scriptRvIf.block());
+            }
+            case Assignment assignment -> {
+                writeValue(assignment.target());
+                for (Operation operation : assignment.formula()) {
+                    writeValue(operation);
+                }
+            }
+            case Operation operation -> {
+                writeValue(operation.value());
+                emitter.putByte(operation.operator());
+                if (operation.operator() == 10 || operation.operator() == 11) {
+                    emitter.putByte(0);
+                }
+            }
+            case Label label -> emitter.markLabel(label.label(), label.definition());
+            case RawByte rawByte -> emitter.putByte(rawByte.value());
+        }
+    }
+
+    private void writeTask(Task task) {
+        if (task.type() != Task.NO_TYPE) {
+            emitter.putByte(task.type());
+        }
+        emitter.putShort(task.function(), true);
+        if (task.paramCount() != Task.NO_PARAM_COUNT) {
+            emitter.putByte(task.paramCount());
+        }
+        for (ScriptValue param : task.params()) {
+            writeValue(param);
+            // Flags and variables are padded out as parameters
+            if (param instanceof Flag) {
+                emitter.putShort(0, false);
+            } else if (param instanceof Variable) {
+                emitter.putByte(0);
+                emitter.putByte(0);
+                emitter.putByte(0);
+            }
+        }
+    }
+
+    private void writeObjectName(ObjectName objectName) {
+        emitter.putByte(objectName.type());
+        if (objectName.value() != ObjectName.NO_VALUE) {
+            emitter.putByte(objectName.value());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package redguard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A pool of unique strings, each interned once and looked up by hash. Strings keep the index they were added at, and
+ * packing the pool into a zero-terminated string table (like RAST) gives each string a byte offset into that table.
+ */
+public class StringPool {
+    private final Map<String, Integer> indices;
+    private final List<String> strings;
+    private int[] offsets;
+
+    public StringPool() {
+        indices = new HashMap<>();
+        strings = new ArrayList<>();
+    }
+
+    /**
+     * Add a string to the pool if it is not already there.
+     *
+     * @param str The string to add
+     * @return The index of the string in the pool
+     */
+    public int add(String str) {
+        Integer index = indices.get(str);
+        if (index == null) {
+            index = strings.size();
+            indices.put(str, index);
+            strings.add(str);
+            offsets = null;
+        }
+        return index;
+    }
+
+    /**
+     * Add a string to the end of the pool even if it is already there, for string lists that must keep their
+     * duplicates. Looking the string up still gives its first index.
+     *
+     * @param str The string to add
+     * @return The index of the added string
+     */
+    public int append(String str) {
+        int index = strings.size();
+        indices.putIfAbsent(str, index);
+        strings.add(str);
+        offsets = null;
+        return index;
+    }
+
+    public int indexOf(String str) {
+        return indices.getOrDefault(str, -1);
+    }
+
+    public List<String> getStrings() {
+        return Collections.unmodifiableList(strings);
+    }
+
+    public int size() {
+        return strings.size();
+    }
+
+    /**
+     * Pack all strings into a table of zero-terminated strings, in the order they were added. Afterwards,
+     * {@link #getOffset(String)} gives the offset of each string in the table.
+     *
+     * @param mergeSuffixes If true, a string that is the end of another string shares that string's bytes instead of
+     *                      being stored again
+     * @return The string table
+     */
+    public byte[] pack(boolean mergeSuffixes) {
+        byte[][] encoded = new byte[strings.size()][];
+        for (int i = 0; i < strings.size(); i++) {
+            encoded[i] = strings.get(i).getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // Find the string that holds each string's bytes, which is itself unless its bytes are shared
+        int[] owners = new int[strings.size()];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = i;
+        }
+        if (mergeSuffixes) {
+            // Sorting by reversed string puts every string right before the strings that end with it
+            Integer[] sorted = new Integer[strings.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, (a, b) -> compareReversed(encoded[a], encoded[b]));
+            for (int i = sorted.length - 2; i >= 0; i--) {
+                int next = sorted[i + 1];
+                if (isSuffix(encoded[sorted[i]], encoded[next])) {
+                    owners[sorted[i]] = owners[next];
+                }
+            }
+        }
+
+        int length = 0;
+        offsets = new int[strings.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            if (owners[i] == i) {
+                offsets[i] = length;
+                length += encoded[i].length + 1;
+            }
+        }
+        byte[] table = new byte[length];
+        for (int i = 0; i < encoded.length; i++) {
+            if (owners[i] == i) {
+                System.arraycopy(encoded[i], 0, table, offsets[i], encoded[i].length);
+            } else {
+                offsets[i] = offsets[owners[i]] + encoded[owners[i]].length - encoded[i].length;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param str A string in the pool
+     * @return The offset of the string in the table from the last call to {@link #pack(boolean)}
+     */
+    public int getOffset(String str) {
+        if (offsets == null) {
+            throw new IllegalStateException("String pool has not been packed");
+        }
+        return offsets[indices.get(str)];
+    }
+
+    private static int compareReversed(byte[] a, byte[] b) {
+        for (int i = 1; i <= Math.min(a.length, b.length); i++) {
+            int compare = Byte.compareUnsigned(a[a.length - i], b[b.length - i]);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static boolean isSuffix(byte[] suffix, byte[] str) {
+        if (suffix.length > str.length) {
+            return false;
+        }
+        return Arrays.equals(suffix, 0, suffix.length, str, str.length - suffix.length, str.length);
+    }
+}
@@ -0,0 +1,86 @@
+package redguard;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup from the names that ScriptReader writes to the ids that ScriptParser compiles them back into. A table is
+ * built once from a map database and never changes, so any number of parsers can share it at the same time.
+ */
+public class SymbolTable {
+    private final Map<String, Integer> mapIds;
+    private final Map<String, Integer> functionIds;
+    private final Map<String, Integer> flagIds;
+    private final Map<String, Integer> itemIds;
+    private final Map<String, Integer> references;
+    private final Map<String, Integer> attributes;
+
+    public SymbolTable(MapDatabase mapDatabase) {
+        // Map files, include angle brackets
+        Map<String, Integer> mapIds = new HashMap<>();
+        for (MapFile mapFile : mapDatabase.getMapFiles()) {
+            mapIds.put("<" + mapFile.getName() + ">", mapFile.getIDs().getFirst());
+        }
+        this.mapIds = Map.copyOf(mapIds);
+        // Functions
+        Map<String, Integer> functionIds = new HashMap<>();
+        for (int i = 0; i < mapDatabase.getFunctions().size(); i++) {
+            functionIds.put(mapDatabase.getFunctions().get(i).getName(), i);
+        }
+        this.functionIds = Map.copyOf(functionIds);
+        // Flags
+        Map<String, Integer> flagIds = new HashMap<>();
+        for (int i = 0; i < mapDatabase.getFlags().size(); i++) {
+            flagIds.put(mapDatabase.getFlags().get(i).getName(), i);
+        }
+        this.flagIds = Map.copyOf(flagIds);
+        // Items, include angle brackets
+        Map<String, Integer> itemIds = new HashMap<>();
+        for (int i = 0; i < mapDatabase.getItems().size(); i++) {
+            itemIds.put("<" + mapDatabase.getItems().get(i).getName() + ">", i);
+        }
+        this.itemIds = Map.copyOf(itemIds);
+        // References
+        Map<String, Integer> references = new HashMap<>();
+        for (int i = 0; i < mapDatabase.getReferences().size(); i++) {
+            references.put(mapDatabase.getReferences().get(i), i);
+        }
+        this.references = Map.copyOf(references);
+        // Attributes
+        Map<String, Integer> attributes = new HashMap<>();
+        for (int i = 0; i < mapDatabase.getAttributes().size(); i++) {
+            attributes.put(mapDatabase.getAttributes().get(i), i);
+        }
+        this.attributes = Map.copyOf(attributes);
+    }
+
+    /**
+     * @return Map ids by map name in angle brackets, such as {@code <ISLAND>}
+     */
+    public Map<String, Integer> getMapIds() {
+        return mapIds;
+    }
+
+    public Map<String, Integer> getFunctionIds() {
+        return functionIds;
+    }
+
+    public Map<String, Integer> getFlagIds() {
+        return flagIds;
+    }
+
+    /**
+     * @return Item ids by item name in angle brackets
+     */
+    public Map<String, Integer> getItemIds() {
+        return itemIds;
+    }
+
+    public Map<String, Integer> getReferences() {
+        return references;
+    }
+
+    public Map<String, Integer> getAttributes() {
+        return attributes;
+    }
+}
@@ -3,8 +3,13 @@ package redguard;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.stream.Collectors;
 
 import static modManager.RedguardModManager.logger;
@@ -91,6 +96,40 @@ public class Utils {
         }
     }
 
+    /**
+     * @param path The file to hash
+     * @return The SHA-256 hash of the file's contents as a hex string
+     */
+    public static String hashFile(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream input = new DigestInputStream(new BufferedInputStream(Files.newInputStream(path)), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param parts The strings to hash, which are separated so that different splits of the same text hash differently
+     * @return The SHA-256 hash of the strings as a hex string
+     */
+    public static String hashStrings(String... parts) {
+        MessageDigest digest = newDigest();
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static String validFilename(String str) {
         return str.replaceAll("[\\\\/:*\"<>|]", "_");
     }